@@ -5,10 +5,15 @@ import com.hmdp.dto.Result;
 import com.hmdp.service.IVoucherOrderService;
 import com.hmdp.service.IVoucherService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import java.util.List;
 
 /**
  * <p>
@@ -25,7 +30,33 @@ public class VoucherOrderController {
     @Autowired
     private IVoucherOrderService voucherOrderService ;
     @PostMapping("seckill/{id}")
-    public Result seckillVoucher(@PathVariable("id") Long voucherId) {
-        return voucherOrderService.seckillVoucher(voucherId);
+    public Result seckillVoucher(@PathVariable("id") Long voucherId,
+                                 @RequestParam(value = "quantity", defaultValue = "1") Integer quantity) {
+        return voucherOrderService.seckillVoucher(voucherId, quantity);
+    }
+
+    @PostMapping("seckill/bundle")
+    public Result seckillBundle(@RequestParam("ids") List<Long> voucherIds) {
+        return voucherOrderService.seckillBundle(voucherIds);
+    }
+
+    @PostMapping("seckill/{id}/ticket")
+    public Result takeTicket(@PathVariable("id") Long voucherId) {
+        return voucherOrderService.takeTicket(voucherId);
+    }
+
+    @GetMapping("seckill/{id}/ticket")
+    public Result queryTicket(@PathVariable("id") Long voucherId) {
+        return voucherOrderService.queryTicket(voucherId);
+    }
+
+    @GetMapping("result/{orderId}")
+    public DeferredResult<Result> awaitOrderResult(@PathVariable("orderId") Long orderId) {
+        return voucherOrderService.awaitOrderResult(orderId);
+    }
+
+    @GetMapping("stats")
+    public Result queryStreamStats() {
+        return voucherOrderService.queryStreamStats();
     }
 }
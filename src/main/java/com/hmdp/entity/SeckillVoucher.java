@@ -37,6 +37,31 @@ public class SeckillVoucher implements Serializable {
      */
     private Integer stock;
 
+    /**
+     * 库存分片数，大于1时Redis中的库存和下单用户集合拆分为多个子key
+     */
+    private Integer stockShards;
+
+    /**
+     * 每个用户的限购数量，为1时一人一单
+     */
+    private Integer userLimit;
+
+    /**
+     * 每秒允许的秒杀请求数，0表示不限流
+     */
+    private Integer rateLimit;
+
+    /**
+     * 每个用户每分钟允许的秒杀请求数，0表示不限流
+     */
+    private Integer userRateLimit;
+
+    /**
+     * 是否开启排队：开启后用户需要先领取排队号，轮到后才能参与秒杀
+     */
+    private Boolean waitingRoom;
+
     /**
      * 创建时间
      */
@@ -78,6 +78,36 @@ public class Voucher implements Serializable {
     @TableField(exist = false)
     private Integer stock;
 
+    /**
+     * 库存分片数
+     */
+    @TableField(exist = false)
+    private Integer stockShards;
+
+    /**
+     * 每个用户的限购数量
+     */
+    @TableField(exist = false)
+    private Integer userLimit;
+
+    /**
+     * 每秒允许的秒杀请求数
+     */
+    @TableField(exist = false)
+    private Integer rateLimit;
+
+    /**
+     * 每个用户每分钟允许的秒杀请求数
+     */
+    @TableField(exist = false)
+    private Integer userRateLimit;
+
+    /**
+     * 是否开启排队
+     */
+    @TableField(exist = false)
+    private Boolean waitingRoom;
+
     /**
      * 生效时间
      */
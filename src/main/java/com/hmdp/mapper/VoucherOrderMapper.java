@@ -2,6 +2,10 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+import org.springframework.dao.DuplicateKeyException;
+
+import java.util.List;
 
 /**
  * <p>
@@ -13,4 +17,30 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface VoucherOrderMapper extends BaseMapper<VoucherOrder> {
 
+    /**
+     * 插入订单 insert into tb_voucher_order (...) values (...)
+     * @param order 订单
+     * @return 插入的行数
+     */
+    int insertOrder(VoucherOrder order);
+
+    /**
+     * 插入订单，订单id已存在时忽略（只忽略主键冲突，其他错误照常抛出）
+     * @param order 订单
+     * @return 插入的行数，0表示订单已存在
+     */
+    default int insertIfAbsent(VoucherOrder order) {
+        try {
+            return insertOrder(order);
+        } catch (DuplicateKeyException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * 多行插入订单 insert into tb_voucher_order (...) values (...),(...)，有订单id已存在时整条语句抛出DuplicateKeyException
+     * @param orders 订单列表
+     * @return 插入的行数
+     */
+    int insertBatch(@Param("orders") List<VoucherOrder> orders);
 }
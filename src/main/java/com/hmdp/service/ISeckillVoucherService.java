@@ -13,4 +13,16 @@ import com.baomidou.mybatisplus.extension.service.IService;
  */
 public interface ISeckillVoucherService extends IService<SeckillVoucher> {
 
+    /**
+     * 把秒杀券的库存和资格元数据（分片数、开始/结束时间、每人限购数量）发布到redis，供秒杀脚本一次完成全部校验
+     * @param seckillVoucher 秒杀券
+     * @param overwriteStock true：覆盖redis中的库存；false：库存已存在时保留（重启加载时不能覆盖已扣减的库存）
+     */
+    void publishToRedis(SeckillVoucher seckillVoucher, boolean overwriteStock);
+
+    /**
+     * 在时间轮中登记秒杀券的定时任务：开始前预加载到redis、开始时预热本地缓存、结束后清理redis数据
+     * @param seckillVoucher 秒杀券
+     */
+    void scheduleVoucher(SeckillVoucher seckillVoucher);
 }
@@ -3,9 +3,11 @@ package com.hmdp.service;
 import com.baomidou.mybatisplus.extension.service.IService;
 import com.hmdp.dto.LoginFormDTO;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 
 import javax.servlet.http.HttpSession;
+import java.util.List;
 
 /**
  * <p>
@@ -43,4 +45,11 @@ public interface IUserService extends IService<User> {
      */
     Result signCount();
 
+    /**
+     * 根据id批量查询用户公开信息（优先读缓存）
+     * @param ids 用户id
+     * @return 按传入顺序排列的用户，不存在的用户跳过
+     */
+    List<UserDTO> queryUserDTOs(List<Long> ids);
+
 }
@@ -3,6 +3,9 @@ package com.hmdp.service;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import java.util.List;
 
 /**
  * <p>
@@ -17,10 +20,58 @@ import com.baomidou.mybatisplus.extension.service.IService;
 public interface IVoucherOrderService extends IService<VoucherOrder> {
     /**
      * 优惠券抢购
+     * @param voucherId 优惠券id
+     * @param quantity 购买数量
+     */
+    Result seckillVoucher(Long voucherId, Integer quantity);
+
+    /**
+     * 组合秒杀：多张秒杀券全部抢购成功或者全部失败。
+     * 整个组合作为一条消息进入第一张券的分区，组合中其他券的订单与这些券的单券订单之间不保证处理顺序
+     * @param voucherIds 优惠券id，每张购买1份
+     * @return 每张优惠券的订单id
      */
-    Result seckillVoucher(Long voucherId);
+    Result seckillBundle(List<Long> voucherIds);
 
     //Result createVoucherOrder(Long voucherId);
 
     void createVoucherOrder(VoucherOrder voucherOrder);
+
+    /**
+     * 批量创建订单：一次多行插入，并按优惠券聚合扣减库存
+     */
+    void createVoucherOrders(List<VoucherOrder> voucherOrders);
+
+    /**
+     * 在一个事务中创建组合秒杀的全部订单
+     */
+    void createVoucherOrderBundle(List<VoucherOrder> voucherOrders);
+
+    /**
+     * 取消超时未支付的订单并退回数据库库存
+     * @param orderIds 到期的订单id
+     * @return 本次实际取消的订单（加锁后仍为未支付状态的订单）
+     */
+    List<VoucherOrder> cancelTimeoutOrders(List<Long> orderIds);
+
+    /**
+     * 领取排队号（开启排队的秒杀券）
+     */
+    Result takeTicket(Long voucherId);
+
+    /**
+     * 查询排队状态，只读redis，不执行秒杀脚本
+     */
+    Result queryTicket(Long voucherId);
+
+    /**
+     * 长轮询等待订单处理结果，订单落库或处理失败后立即返回，超时返回pending
+     * @param orderId 秒杀返回的订单id
+     */
+    DeferredResult<Result> awaitOrderResult(Long orderId);
+
+    /**
+     * 订单消息队列统计：各分区的pending数量、最老pending消息的等待时间、队列长度和内存占用
+     */
+    Result queryStreamStats();
 }
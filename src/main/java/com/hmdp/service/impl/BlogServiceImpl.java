@@ -1,8 +1,6 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.dto.ScrollResult;
@@ -14,22 +12,29 @@ import com.hmdp.service.IBlogService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.service.IFollowService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
 import org.springframework.beans.BeanUtils;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.ZSetOperations;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.BLOG_LIKED_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_BLOG_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_BLOG_TTL;
 import static com.hmdp.utils.RedisConstants.FEED_KEY;
 
 /**
@@ -48,6 +53,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     private StringRedisTemplate stringRedisTemplate;
     @Resource
     private IFollowService followService;
+    @Resource
+    private CacheClient cacheClient;
     @Override
     public Result queryHotBlog(Integer current) {
         // 根据用户查询
@@ -56,11 +63,9 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
                 .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
         // 获取当前页数据
         List<Blog> records = page.getRecords();
-        // 查询用户
-        records.forEach(blog ->{
-            this.queryBlogUser(blog);
-            this.isBlogLiked(blog);
-        });
+        // 批量查询用户和点赞状态
+        this.queryBlogUsers(records);
+        this.isBlogsLiked(records);
         return Result.ok(records);
     }
 
@@ -105,12 +110,15 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             boolean isSuccesss = update().setSql("liked=liked+1").eq("id", id).update();
             if (isSuccesss){
                 stringRedisTemplate.opsForZSet().add(key,userId.toString(),System.currentTimeMillis());
+                //点赞数变化，删除笔记缓存
+                cacheClient.delete(CACHE_BLOG_KEY + id);
             }
         }else {
             //存在，也就是点过，点过，则取消点赞，修改数据库并从set中移除该用户id
             boolean isSuccess = update().setSql("liked = liked -1").eq("id", id).update();
             if (isSuccess){
                 stringRedisTemplate.opsForZSet().remove(key,userId.toString());
+                cacheClient.delete(CACHE_BLOG_KEY + id);
             }
 
         }
@@ -131,12 +139,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         }
         //2.从查询的结果中解析出用户id
         List<Long> ids = top5.stream().map(Long::valueOf).collect(Collectors.toList());
-        String idStr = StrUtil.join(",",ids);
-        //3.根据用户id查询用户 where id in (5,1) order by field(id,5,1)
-        List<UserDTO> userDTOS = userService.query().in("id",ids).last("order by field(id,"+idStr+")").list()
-                .stream()
-                .map(user -> BeanUtil.copyProperties(user, UserDTO.class))
-                .collect(Collectors.toList());
+        //3.根据用户id批量查询用户，先查缓存，未命中的where id in (5,1)，按点赞顺序返回
+        List<UserDTO> userDTOS = userService.queryUserDTOs(ids);
         //4.将用户封装为userDTO列表返回
         return Result.ok(userDTOS);
     }
@@ -151,8 +155,9 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         //1.获取登录用户 登录用户即是博客作者
         UserDTO user = UserHolder.getUser();
         blog.setUserId(user.getId());
-        //2.保存探店博文到数据库
+        //2.保存探店博文到数据库，并删除之前可能缓存的空值
         save(blog);
+        cacheClient.delete(CACHE_BLOG_KEY + blog.getId());
         //3.推送博客给粉丝 利用sortset存储，key是粉丝id，value是blogId，score是时间戳
         //3.1.查询所有粉丝，根据作者id查询tb_follow表，查出粉丝id
         List<Follow> follows = followService.query().eq("follow_user_id", user.getId()).list();
@@ -201,12 +206,13 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
                 os = 1;
             }
         }
-        String idStr = StrUtil.join(",", ids);
-        List<Blog> blogs = query().in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list();
-        blogs.forEach(blog -> {
-            queryBlogUser(blog);
-            isBlogLiked(blog);
-        });
+        //根据blogId批量查询博客，先查缓存，未命中的一次in查询，按收件箱顺序返回
+        List<Blog> blogs = cacheClient.queryBatchWithPassThrough(CACHE_BLOG_KEY, ids, Blog.class,
+                missIds -> listByIds(missIds).stream().collect(Collectors.toMap(Blog::getId, blog -> blog)),
+                CACHE_BLOG_TTL, TimeUnit.MINUTES);
+        //批量查询作者（一次MGET + 一次IN查询）和点赞状态（一次管道）
+        queryBlogUsers(blogs);
+        isBlogsLiked(blogs);
         //返回数据
         ScrollResult scrollResult = new ScrollResult();
         scrollResult.setList(blogs);
@@ -215,6 +221,57 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         return Result.ok(scrollResult);
     }
 
+    /**
+     * 批量查询笔记作者，先查缓存，未命中的作者一次IN查询
+     */
+    private void queryBlogUsers(List<Blog> blogs) {
+        if (blogs.isEmpty()) {
+            return;
+        }
+        List<Long> userIds = blogs.stream().map(Blog::getUserId).distinct().collect(Collectors.toList());
+        Map<Long, UserDTO> users = userService.queryUserDTOs(userIds).stream()
+                .collect(Collectors.toMap(UserDTO::getId, user -> user));
+        for (Blog blog : blogs) {
+            UserDTO user = users.get(blog.getUserId());
+            if (user != null) {
+                blog.setName(user.getNickName());
+                blog.setIcon(user.getIcon());
+            }
+        }
+    }
+
+    /**
+     * 批量查询当前用户是否点赞过这些笔记，所有ZSCORE通过一次管道发送
+     */
+    private void isBlogsLiked(List<Blog> blogs) {
+        UserDTO user = UserHolder.getUser();
+        if (user == null || blogs.isEmpty()) {
+            return;//用户未登录
+        }
+        byte[] member = user.getId().toString().getBytes(StandardCharsets.UTF_8);
+        List<Object> scores = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Blog blog : blogs) {
+                connection.zScore((BLOG_LIKED_KEY + blog.getId()).getBytes(StandardCharsets.UTF_8), member);
+            }
+            return null;
+        });
+        for (int i = 0; i < blogs.size(); i++) {
+            blogs.get(i).setIsLike(scores.get(i) != null);
+        }
+    }
+
+    /**
+     * 修改笔记后删除笔记缓存
+     */
+    @Override
+    public boolean updateById(Blog blog) {
+        boolean success = super.updateById(blog);
+        if (success) {
+            cacheClient.delete(CACHE_BLOG_KEY + blog.getId());
+        }
+        return success;
+    }
+
     private void queryBlogUser(Blog blog) {
         Long userId = blog.getUserId();
         com.hmdp.entity.User user = userService.getById(userId);
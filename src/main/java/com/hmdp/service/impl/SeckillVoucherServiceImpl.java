@@ -1,11 +1,54 @@
 package com.hmdp.service.impl;
 
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
 import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.SeckillVoucherMapper;
+import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.ILock;
+import com.hmdp.utils.SeckillKeys;
+import com.hmdp.utils.SeckillRateLimiter;
+import com.hmdp.utils.SimpleRedisLock;
+import com.hmdp.utils.SoldOutCache;
+import com.hmdp.utils.TokenBucket;
+import io.netty.util.HashedWheelTimer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_BACKLOG_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_QUOTA_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_RATE_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_RECONCILE_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ROOM_ACTIVE_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_VOUCHER_KEY;
+
 /**
  * <p>
  * 秒杀优惠券表，与优惠券是一对一关系 服务实现类
@@ -14,7 +57,500 @@ import org.springframework.stereotype.Service;
  * @author 虎哥
  * @since 2022-01-04
  */
+@Slf4j
 @Service
 public class SeckillVoucherServiceImpl extends ServiceImpl<SeckillVoucherMapper, SeckillVoucher> implements ISeckillVoucherService {
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private VoucherOrderMapper voucherOrderMapper;
+    @Resource
+    private SeckillRateLimiter seckillRateLimiter;
+    @Resource
+    private SoldOutCache soldOutCache;
+
+    @Value("${seckill.schedule.preload-lead:300}")
+    private long preloadLeadSeconds;
+    @Value("${seckill.schedule.cleanup-delay:60}")
+    private long cleanupDelayMinutes;
+    @Value("${seckill.schedule.refresh-interval:60}")
+    private long refreshIntervalSeconds;
+
+    @Value("${seckill.reconcile.interval:10}")
+    private long reconcileIntervalMinutes;
+    @Value("${seckill.reconcile.chunk-size:500}")
+    private int reconcileChunkSize;
+    @Value("${seckill.reconcile.rate:5}")
+    private double reconcileRate;
+    @Value("${seckill.reconcile.fix:false}")
+    private boolean reconcileFix;
+
+    //秒杀券定时任务时间轮：一个线程管理所有秒杀券的开始/结束定时，tick 100ms，512个槽
+    private static final HashedWheelTimer VOUCHER_TIMER = new HashedWheelTimer(r -> {
+        Thread thread = new Thread(r, "seckill-voucher-timer");
+        thread.setDaemon(true);
+        return thread;
+    }, 100, TimeUnit.MILLISECONDS, 512);
+    //时间轮只负责计时，到期的任务交给该线程执行，避免redis操作阻塞时间轮
+    private static final ExecutorService VOUCHER_TASK_EXECUTOR = Executors.newSingleThreadExecutor();
+    //已经登记定时任务的秒杀券
+    private final Set<Long> scheduledVouchers = ConcurrentHashMap.newKeySet();
+
+    //对账线程
+    private static final ScheduledExecutorService RECONCILE_EXECUTOR = Executors.newSingleThreadScheduledExecutor();
+    private static final DefaultRedisScript<List> SCAN_SCRIPT;
+
+    static {
+        SCAN_SCRIPT = new DefaultRedisScript<>();
+        SCAN_SCRIPT.setLocation(new ClassPathResource("reconcile_scan.lua"));
+        SCAN_SCRIPT.setResultType(List.class);
+    }
+
+    //对账阶段：扫描redis中的下单用户 -> 分页扫描数据库中的订单 -> 比较库存 -> 完成
+    private static final String PHASE_REDIS = "redis";
+    private static final String PHASE_DB = "db";
+    private static final String PHASE_STOCK = "stock";
+    private static final String PHASE_DONE = "done";
+    //已取消的订单不计入购买数量
+    private static final int ORDER_STATUS_CANCELED = 4;
+
+    //对账限流：每秒最多处理的批数
+    private TokenBucket reconcileBucket;
+
+    @PostConstruct
+    private void init() {
+        loadSeckillVouchers();
+        reconcileBucket = new TokenBucket(reconcileRate, Math.max(1, reconcileRate));
+        if (reconcileIntervalMinutes > 0) {
+            RECONCILE_EXECUTOR.scheduleWithFixedDelay(this::reconcile, 1, 1, TimeUnit.SECONDS);
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        RECONCILE_EXECUTOR.shutdownNow();
+        VOUCHER_TIMER.stop();
+        VOUCHER_TASK_EXECUTOR.shutdownNow();
+    }
+
+    /**
+     * 加载未清理的秒杀券并登记定时任务，之后每隔refreshIntervalSeconds再加载一次，登记其他实例新增的秒杀券
+     */
+    private void loadSeckillVouchers() {
+        try {
+            //包括已经结束但还没有清理的秒杀券
+            List<SeckillVoucher> vouchers = query()
+                    .gt("end_time", LocalDateTime.now().minusMinutes(cleanupDelayMinutes)).list();
+            int scheduled = 0;
+            for (SeckillVoucher voucher : vouchers) {
+                if (!scheduledVouchers.contains(voucher.getVoucherId())) {
+                    scheduleVoucher(voucher);
+                    scheduled++;
+                }
+            }
+            if (scheduled > 0) {
+                log.info("登记秒杀券定时任务，数量: {}", scheduled);
+            }
+        } catch (Exception e) {
+            log.error("加载秒杀券异常", e);
+        }
+        VOUCHER_TIMER.newTimeout(timeout -> VOUCHER_TASK_EXECUTOR.execute(this::loadSeckillVouchers),
+                refreshIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void scheduleVoucher(SeckillVoucher seckillVoucher) {
+        Long voucherId = seckillVoucher.getVoucherId();
+        if (!scheduledVouchers.add(voucherId)) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long begin = toEpochSecond(seckillVoucher.getBeginTime()) * 1000;
+        long end = toEpochSecond(seckillVoucher.getEndTime()) * 1000;
+        //1.开始前preloadLeadSeconds预加载库存和资格元数据（已经过了预加载时间的立即加载，不覆盖已扣减的库存）
+        schedule(begin - TimeUnit.SECONDS.toMillis(preloadLeadSeconds) - now, () -> publishToRedis(seckillVoucher, false));
+        //2.开始时预热本地缓存
+        schedule(begin - now, () -> seckillRateLimiter.warm(voucherId));
+        //3.结束后清理（留出支付超时退库存的时间）
+        schedule(end + TimeUnit.MINUTES.toMillis(cleanupDelayMinutes) - now, () -> cleanup(seckillVoucher));
+    }
+
+    private void schedule(long delayMillis, Runnable task) {
+        VOUCHER_TIMER.newTimeout(timeout -> VOUCHER_TASK_EXECUTOR.execute(() -> {
+            try {
+                task.run();
+            } catch (Exception e) {
+                log.error("秒杀券定时任务异常", e);
+            }
+        }), Math.max(0, delayMillis), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 秒杀结束后清理redis中的库存、元数据、下单用户和限购计数，并移除本地缓存
+     */
+    private void cleanup(SeckillVoucher seckillVoucher) {
+        Long voucherId = seckillVoucher.getVoucherId();
+        int shards = shardsOf(seckillVoucher);
+        List<String> keys = new ArrayList<>(3 * shards + 2);
+        keys.add(SECKILL_VOUCHER_KEY + voucherId);
+        keys.add(SECKILL_RATE_KEY + voucherId);
+        for (int i = 0; i < shards; i++) {
+            keys.add(SeckillKeys.shardKey(SECKILL_STOCK_KEY, voucherId, shards, i));
+            keys.add(SeckillKeys.shardKey(SECKILL_ORDER_KEY, voucherId, shards, i));
+            keys.add(SeckillKeys.shardKey(SECKILL_QUOTA_KEY, voucherId, shards, i));
+        }
+        //unlink在后台线程释放大集合的内存，不阻塞redis
+        stringRedisTemplate.unlink(keys);
+        seckillRateLimiter.remove(voucherId);
+        soldOutCache.evict(voucherId);
+        scheduledVouchers.remove(voucherId);
+        log.info("秒杀券已结束，清理redis数据，优惠券ID: {}", voucherId);
+    }
+
+    @Override
+    public void publishToRedis(SeckillVoucher seckillVoucher, boolean overwriteStock) {
+        Long voucherId = seckillVoucher.getVoucherId();
+        int stock = seckillVoucher.getStock();
+        int shards = seckillVoucher.getStockShards() == null ? 1 : Math.max(1, seckillVoucher.getStockShards());
+        //1.库存。分片数为1时写入seckill:stock:{id}；否则把库存平均拆分到seckill:stock:{id:i}，余数分给前几个分片
+        Map<String, String> shardStock = new HashMap<>(shards);
+        for (int i = 0; i < shards; i++) {
+            int s = stock / shards + (i < stock % shards ? 1 : 0);
+            shardStock.put(SeckillKeys.shardKey(SECKILL_STOCK_KEY, voucherId, shards, i), String.valueOf(s));
+        }
+        if (overwriteStock) {
+            stringRedisTemplate.opsForValue().multiSet(shardStock);
+        } else {
+            stringRedisTemplate.opsForValue().multiSetIfAbsent(shardStock);
+        }
+        //2.资格元数据：分片数、开始/结束时间（秒）、每人限购数量、限流速率
+        Map<String, String> meta = new HashMap<>(8);
+        meta.put("shards", String.valueOf(shards));
+        meta.put("limit", String.valueOf(seckillVoucher.getUserLimit() == null ? 1 : seckillVoucher.getUserLimit()));
+        meta.put("begin", String.valueOf(toEpochSecond(seckillVoucher.getBeginTime())));
+        meta.put("end", String.valueOf(toEpochSecond(seckillVoucher.getEndTime())));
+        meta.put("rate", String.valueOf(seckillVoucher.getRateLimit() == null ? 0 : seckillVoucher.getRateLimit()));
+        meta.put("userRate", String.valueOf(seckillVoucher.getUserRateLimit() == null ? 0 : seckillVoucher.getUserRateLimit()));
+        boolean waitingRoom = Boolean.TRUE.equals(seckillVoucher.getWaitingRoom());
+        meta.put("room", waitingRoom ? "1" : "0");
+        stringRedisTemplate.opsForHash().putAll(SECKILL_VOUCHER_KEY + voucherId, meta);
+        //3.开启排队的秒杀券加入排队集合，由SeckillWaitingRoom定时放行
+        if (waitingRoom) {
+            stringRedisTemplate.opsForSet().add(SECKILL_ROOM_ACTIVE_KEY, voucherId.toString());
+        }
+        //4.清除之前可能留下的售罄标记（例如在加载前被请求过的秒杀券id）
+        soldOutCache.clear(voucherId);
+    }
+
+    /**
+     * redis与数据库对账：增量进行，每次只处理一批（SSCAN/HSCAN一批用户 + 一次IN查询，或数据库分页一批订单），
+     * 进度保存在redis中，多个实例通过锁保证同时只有一个实例对账。
+     * 订单还在消息队列中时无法区分“未落库”和“处理中”，此时暂停对账；开启fix时用数据库修正redis。
+     * 只对已经结束的秒杀券对账：进行中的秒杀券随时有新订单写入redis，修正会把刚下单的用户移除并退回库存
+     */
+    private void reconcile() {
+        ILock lock = new SimpleRedisLock("seckill:reconcile", stringRedisTemplate);
+        if (!lock.tryLock(30)) {
+            return;
+        }
+        try {
+            //已经结束、还没有清理的秒杀券
+            LocalDateTime now = LocalDateTime.now();
+            List<SeckillVoucher> vouchers = query()
+                    .gt("end_time", now.minusMinutes(cleanupDelayMinutes)).lt("end_time", now).list();
+            for (SeckillVoucher voucher : vouchers) {
+                while (reconcileStep(voucher)) {
+                    //按批限流，当前秒的额度用完后下一秒继续
+                }
+            }
+        } catch (Exception e) {
+            log.error("秒杀对账异常", e);
+        } finally {
+            lock.unLock();
+        }
+    }
+
+    /**
+     * 对一个秒杀券执行一批对账
+     * @return true：处理了一批，可以继续；false：本轮已完成、需要等待或者限流额度已用完
+     */
+    private boolean reconcileStep(SeckillVoucher voucher) {
+        String stateKey = SECKILL_RECONCILE_KEY + voucher.getVoucherId();
+        Map<Object, Object> state = stringRedisTemplate.opsForHash().entries(stateKey);
+        String phase = state.getOrDefault("phase", PHASE_DONE).toString();
+        //1.上一轮已完成，间隔时间到了再开始下一轮
+        if (PHASE_DONE.equals(phase)) {
+            long finishedAt = Long.parseLong(state.getOrDefault("finishedAt", "0").toString());
+            if (System.currentTimeMillis() - finishedAt < TimeUnit.MINUTES.toMillis(reconcileIntervalMinutes)) {
+                return false;
+            }
+            stringRedisTemplate.delete(stateKey);
+            state = new HashMap<>();
+            phase = PHASE_REDIS;
+        }
+        //2.还有订单在队列中，等待消费完成
+        String backlog = stringRedisTemplate.opsForValue().get(SECKILL_BACKLOG_KEY);
+        if (backlog != null && Long.parseLong(backlog) > 0) {
+            return false;
+        }
+        //3.限流
+        if (!reconcileBucket.tryAcquire()) {
+            return false;
+        }
+        Map<String, String> update = new HashMap<>(8);
+        switch (phase) {
+            case PHASE_REDIS:
+                reconcileRedisChunk(voucher, state, update);
+                break;
+            case PHASE_DB:
+                reconcileDbChunk(voucher, state, update);
+                break;
+            default:
+                reconcileStock(voucher, update);
+        }
+        stringRedisTemplate.opsForHash().putAll(stateKey, update);
+        stringRedisTemplate.expire(stateKey, 7, TimeUnit.DAYS);
+        return !PHASE_DONE.equals(update.get("phase"));
+    }
+
+    /**
+     * redis -> 数据库：扫描一批下单用户，用一次IN查询比较每个用户的购买数量
+     */
+    @SuppressWarnings("unchecked")
+    private void reconcileRedisChunk(SeckillVoucher voucher, Map<Object, Object> state, Map<String, String> update) {
+        Long voucherId = voucher.getVoucherId();
+        int shards = shardsOf(voucher);
+        boolean quota = limitOf(voucher) > 1;
+        int shard = Integer.parseInt(state.getOrDefault("shard", "0").toString());
+        String cursor = state.getOrDefault("cursor", "0").toString();
+        //1.扫描一批 sscan/hscan key cursor count N
+        String key = SeckillKeys.shardKey(quota ? SECKILL_QUOTA_KEY : SECKILL_ORDER_KEY, voucherId, shards, shard);
+        List<Object> result = stringRedisTemplate.execute(SCAN_SCRIPT, Collections.singletonList(key),
+                cursor, String.valueOf(reconcileChunkSize), quota ? "hash" : "set");
+        String next = result.get(0).toString();
+        List<Object> items = (List<Object>) result.get(1);
+        Map<Long, Integer> redisBought = new HashMap<>(items.size());
+        if (quota) {
+            for (int i = 0; i + 1 < items.size(); i += 2) {
+                redisBought.put(Long.valueOf(items.get(i).toString()), Integer.valueOf(items.get(i + 1).toString()));
+            }
+        } else {
+            for (Object item : items) {
+                redisBought.put(Long.valueOf(item.toString()), 1);
+            }
+        }
+        //2.一次IN查询数据库中的购买数量并比较
+        if (!redisBought.isEmpty()) {
+            Map<Long, Integer> dbBought = queryBought(voucherId, redisBought.keySet());
+            long mismatches = 0;
+            for (Map.Entry<Long, Integer> entry : redisBought.entrySet()) {
+                int db = dbBought.getOrDefault(entry.getKey(), 0);
+                if (db != entry.getValue()) {
+                    mismatches++;
+                    log.warn("对账差异，优惠券ID: {}，用户ID: {}，redis: {}，数据库: {}", voucherId, entry.getKey(), entry.getValue(), db);
+                    fixUser(voucher, entry.getKey(), entry.getValue(), db);
+                }
+            }
+            incrementState(voucherId, "redisMismatches", mismatches);
+        }
+        //3.保存扫描位置，当前分片扫描完成后进入下一个分片，全部完成后进入数据库阶段
+        if (!"0".equals(next)) {
+            update.put("phase", PHASE_REDIS);
+            update.put("shard", String.valueOf(shard));
+            update.put("cursor", next);
+        } else if (shard + 1 < shards) {
+            update.put("phase", PHASE_REDIS);
+            update.put("shard", String.valueOf(shard + 1));
+            update.put("cursor", "0");
+        } else {
+            update.put("phase", PHASE_DB);
+            update.put("lastUserId", "0");
+        }
+    }
+
+    /**
+     * 数据库 -> redis：按user_id分页扫描一批订单，检查redis中是否有对应的下单记录
+     */
+    private void reconcileDbChunk(SeckillVoucher voucher, Map<Object, Object> state, Map<String, String> update) {
+        Long voucherId = voucher.getVoucherId();
+        int shards = shardsOf(voucher);
+        boolean quota = limitOf(voucher) > 1;
+        long lastUserId = Long.parseLong(state.getOrDefault("lastUserId", "0").toString());
+        //1.分页查询一批用户的购买数量 where voucher_id = ? and user_id > ? group by user_id order by user_id limit N
+        List<Map<String, Object>> rows = voucherOrderMapper.selectMaps(new QueryWrapper<VoucherOrder>()
+                .select("user_id", "sum(quantity) as bought")
+                .eq("voucher_id", voucherId).ne("status", ORDER_STATUS_CANCELED).gt("user_id", lastUserId)
+                .groupBy("user_id").orderByAsc("user_id")
+                .last("limit " + reconcileChunkSize));
+        //2.按分片分组，每个分片一次SMISMEMBER/HMGET
+        Map<Integer, List<Long>> usersOfShard = new HashMap<>();
+        Map<Long, Integer> dbBought = new HashMap<>(rows.size());
+        for (Map<String, Object> row : rows) {
+            long userId = ((Number) row.get("user_id")).longValue();
+            dbBought.put(userId, ((Number) row.get("bought")).intValue());
+            usersOfShard.computeIfAbsent(SeckillKeys.homeShard(userId, shards), k -> new ArrayList<>()).add(userId);
+            lastUserId = userId;
+        }
+        long mismatches = 0;
+        for (Map.Entry<Integer, List<Long>> entry : usersOfShard.entrySet()) {
+            List<Long> userIds = entry.getValue();
+            Object[] fields = userIds.stream().map(String::valueOf).toArray();
+            List<Integer> redisBought = new ArrayList<>(userIds.size());
+            if (quota) {
+                String key = SeckillKeys.shardKey(SECKILL_QUOTA_KEY, voucherId, shards, entry.getKey());
+                for (Object value : stringRedisTemplate.opsForHash().multiGet(key, Arrays.asList(fields))) {
+                    redisBought.add(value == null ? 0 : Integer.parseInt(value.toString()));
+                }
+            } else {
+                String key = SeckillKeys.shardKey(SECKILL_ORDER_KEY, voucherId, shards, entry.getKey());
+                Map<Object, Boolean> members = stringRedisTemplate.opsForSet().isMember(key, fields);
+                for (Object field : fields) {
+                    redisBought.add(Boolean.TRUE.equals(members.get(field)) ? 1 : 0);
+                }
+            }
+            //3.只处理redis中少记录的情况，redis中多记录的情况已经在redis阶段处理
+            for (int i = 0; i < userIds.size(); i++) {
+                Long userId = userIds.get(i);
+                int db = dbBought.get(userId);
+                if (redisBought.get(i) < db) {
+                    mismatches++;
+                    log.warn("对账差异，优惠券ID: {}，用户ID: {}，redis: {}，数据库: {}", voucherId, userId, redisBought.get(i), db);
+                    fixUser(voucher, userId, redisBought.get(i), db);
+                }
+            }
+        }
+        incrementState(voucherId, "dbMismatches", mismatches);
+        //4.保存分页位置，最后一页处理完成后进入库存比较阶段
+        if (rows.size() < reconcileChunkSize) {
+            update.put("phase", PHASE_STOCK);
+        } else {
+            update.put("phase", PHASE_DB);
+            update.put("lastUserId", String.valueOf(lastUserId));
+        }
+    }
+
+    /**
+     * 比较redis库存（各分片之和）与数据库库存，开启fix时以数据库为准
+     */
+    private void reconcileStock(SeckillVoucher voucher, Map<String, String> update) {
+        Long voucherId = voucher.getVoucherId();
+        int shards = shardsOf(voucher);
+        SeckillVoucher latest = getById(voucherId);
+        List<String> keys = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) {
+            keys.add(SeckillKeys.shardKey(SECKILL_STOCK_KEY, voucherId, shards, i));
+        }
+        long redisStock = 0;
+        //库存key缺失（还没有预加载或者已经清理）时不修正，避免创建出不完整的分片
+        boolean loaded = true;
+        List<String> values = stringRedisTemplate.opsForValue().multiGet(keys);
+        if (values != null) {
+            for (String value : values) {
+                loaded &= value != null;
+                redisStock += value == null ? 0 : Long.parseLong(value);
+            }
+        }
+        long diff = latest == null ? 0 : latest.getStock() - redisStock;
+        if (diff != 0) {
+            log.warn("对账库存差异，优惠券ID: {}，redis: {}，数据库: {}", voucherId, redisStock, latest.getStock());
+            if (reconcileFix && loaded && values != null) {
+                fixStock(keys, values, latest.getStock());
+            }
+        }
+        update.put("phase", PHASE_DONE);
+        update.put("stockDiff", String.valueOf(diff));
+        update.put("finishedAt", String.valueOf(System.currentTimeMillis()));
+        log.info("秒杀对账完成，优惠券ID: {}，库存差异: {}", voucherId, diff);
+    }
+
+    /**
+     * 按各分片当前库存的比例把redis库存修正为数据库库存，各分片都不小于0；
+     * 分片库存都为0时平均分配，取整剩下的余数分给前几个分片。用INCRBY写入差值，不覆盖期间退回的库存
+     */
+    private void fixStock(List<String> keys, List<String> values, int dbStock) {
+        int shards = keys.size();
+        long target = Math.max(0, dbStock);
+        long[] weights = new long[shards];
+        long weightSum = 0;
+        for (int i = 0; i < shards; i++) {
+            weights[i] = Math.max(0, Long.parseLong(values.get(i)));
+            weightSum += weights[i];
+        }
+        long[] shardTarget = new long[shards];
+        long assigned = 0;
+        for (int i = 0; i < shards; i++) {
+            shardTarget[i] = weightSum > 0 ? weights[i] * target / weightSum : target / shards;
+            assigned += shardTarget[i];
+        }
+        for (int i = 0; assigned < target; i = (i + 1) % shards) {
+            shardTarget[i]++;
+            assigned++;
+        }
+        for (int i = 0; i < shards; i++) {
+            long delta = shardTarget[i] - Long.parseLong(values.get(i));
+            if (delta != 0) {
+                stringRedisTemplate.opsForValue().increment(keys.get(i), delta);
+            }
+        }
+    }
+
+    /**
+     * 以数据库为准修正用户的下单记录，并把差额退回/扣回用户所在分片的库存
+     */
+    private void fixUser(SeckillVoucher voucher, Long userId, int redisCount, int dbCount) {
+        if (!reconcileFix) {
+            return;
+        }
+        Long voucherId = voucher.getVoucherId();
+        int shards = shardsOf(voucher);
+        int home = SeckillKeys.homeShard(userId, shards);
+        if (limitOf(voucher) > 1) {
+            String key = SeckillKeys.shardKey(SECKILL_QUOTA_KEY, voucherId, shards, home);
+            if (dbCount > 0) {
+                stringRedisTemplate.opsForHash().put(key, userId.toString(), String.valueOf(dbCount));
+            } else {
+                stringRedisTemplate.opsForHash().delete(key, userId.toString());
+            }
+        } else {
+            String key = SeckillKeys.shardKey(SECKILL_ORDER_KEY, voucherId, shards, home);
+            if (dbCount > 0) {
+                stringRedisTemplate.opsForSet().add(key, userId.toString());
+            } else {
+                stringRedisTemplate.opsForSet().remove(key, userId.toString());
+            }
+        }
+        String stockKey = SeckillKeys.shardKey(SECKILL_STOCK_KEY, voucherId, shards, home);
+        stringRedisTemplate.opsForValue().increment(stockKey, redisCount - dbCount);
+        incrementState(voucherId, "fixed", 1);
+    }
+
+    private Map<Long, Integer> queryBought(Long voucherId, Collection<Long> userIds) {
+        List<Map<String, Object>> rows = voucherOrderMapper.selectMaps(new QueryWrapper<VoucherOrder>()
+                .select("user_id", "sum(quantity) as bought")
+                .eq("voucher_id", voucherId).ne("status", ORDER_STATUS_CANCELED).in("user_id", userIds)
+                .groupBy("user_id"));
+        Map<Long, Integer> bought = new HashMap<>(rows.size());
+        for (Map<String, Object> row : rows) {
+            bought.put(((Number) row.get("user_id")).longValue(), ((Number) row.get("bought")).intValue());
+        }
+        return bought;
+    }
+
+    private void incrementState(Long voucherId, String field, long delta) {
+        if (delta > 0) {
+            stringRedisTemplate.opsForHash().increment(SECKILL_RECONCILE_KEY + voucherId, field, delta);
+        }
+    }
+
+    private static int shardsOf(SeckillVoucher voucher) {
+        return voucher.getStockShards() == null ? 1 : Math.max(1, voucher.getStockShards());
+    }
+
+    private static int limitOf(SeckillVoucher voucher) {
+        return voucher.getUserLimit() == null ? 1 : voucher.getUserLimit();
+    }
 
+    private static long toEpochSecond(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toEpochSecond();
+    }
 }
@@ -12,9 +12,12 @@ import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.RedisBloomFilter;
 import com.hmdp.utils.RedisData;
 import com.hmdp.utils.SystemConstants;
 import jdk.nashorn.internal.ir.ReturnNode;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.geo.Distance;
 import org.springframework.data.geo.GeoResult;
 import org.springframework.data.geo.GeoResults;
@@ -25,13 +28,16 @@ import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 import reactor.util.retry.Retry;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 
 import java.time.LocalDateTime;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
 import static java.lang.Thread.sleep;
@@ -44,6 +50,7 @@ import static java.lang.Thread.sleep;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IShopService {
     @Resource
@@ -51,6 +58,38 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     @Resource
     private CacheClient cacheClient;
 
+    @Value("${cache.bloom.enabled:false}")
+    private boolean bloomEnabled;
+    @Value("${cache.bloom.expected-insertions:1000000}")
+    private long bloomExpectedInsertions;
+    @Value("${cache.bloom.fpp:0.01}")
+    private double bloomFpp;
+
+    private RedisBloomFilter shopBloomFilter;
+
+    /**
+     * 启动时在后台按id分页读取全部店铺id重建布隆过滤器，重建完成前过滤器不拦截任何请求
+     */
+    @PostConstruct
+    private void initBloomFilter() {
+        if (!bloomEnabled) {
+            return;
+        }
+        shopBloomFilter = new RedisBloomFilter(stringRedisTemplate, BLOOM_SHOP_KEY, bloomExpectedInsertions, bloomFpp);
+        cacheClient.registerBloomFilter(CACHE_SHOP_KEY, shopBloomFilter);
+        CompletableFuture.runAsync(() -> {
+            try {
+                //select id from tb_shop where id > ? order by id limit 1000
+                shopBloomFilter.rebuild(lastId -> query().select("id").gt("id", lastId)
+                        .orderByAsc("id").last("limit 1000").list()
+                        .stream().map(Shop::getId).collect(Collectors.toList()));
+                log.info("店铺布隆过滤器重建完成");
+            } catch (Exception e) {
+                log.error("店铺布隆过滤器重建失败", e);
+            }
+        });
+    }
+
     /**
      * 根据id查询店铺信息
      *
@@ -64,6 +103,8 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         //缓存击穿
         //Shop shop = queryWithMutex(id);
         //Shop shop = cacheClient.queryWithLogicExpire(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        //缓存击穿（按概率提前刷新）
+        //Shop shop = cacheClient.queryWithEarlyRefresh(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
         //
         if (shop == null) {
             return Result.fail("店铺不存在");
@@ -123,34 +164,39 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
 */
 
     /**
-     * 互斥锁解决缓存击穿
+     * 互斥锁解决缓存击穿（没有获取到锁时循环重试，而不是递归）
      */
     private Shop queryWithMutex(Long id) {
         String key = CACHE_SHOP_KEY + id;
         String keyLock = LOCK_SHOP_KEY + id;
         Shop shop = null;
-        //1.根据id查询redis中是否有店铺信息
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        if (StrUtil.isNotBlank(shopJson)) {//这只是查询到商铺数据才为true，null和""都为false
-            //2.有，直接返回
-            shop = JSONUtil.toBean(shopJson, Shop.class);//将json转换为Java对象
-            return shop;
-        }
-        //判断命中的是否是空值
-        if (shopJson != null) {//排除有数据和为null的情况，返回空串的情况
-            //返回一个错误信息
-            return null;
-        }
-        try {
+        while (true) {
+            //1.根据id查询redis中是否有店铺信息
+            String shopJson = stringRedisTemplate.opsForValue().get(key);
+            if (StrUtil.isNotBlank(shopJson)) {//这只是查询到商铺数据才为true，null和""都为false
+                //2.有，直接返回
+                return JSONUtil.toBean(shopJson, Shop.class);//将json转换为Java对象
+            }
+            //判断命中的是否是空值
+            if (shopJson != null) {//排除有数据和为null的情况，返回空串的情况
+                //返回一个错误信息
+                return null;
+            }
             //3.1未命中，尝试获取互斥锁
-            boolean Lock = tryLock(keyLock);
+            if (tryLock(keyLock)) {
+                break;
+            }
             //3.2没有获取到，说明已经有线程获取锁在查询数据库，休眠一段时间重试查询redis缓存
-            if (!Lock) {
+            try {
                 Thread.sleep(50);
-                return queryWithMutex(id);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
             }
+        }
+        try {
             //3.3获取锁成功，再次检测redis缓存是否存在，如果存在则无需重建缓存
-            shopJson = stringRedisTemplate.opsForValue().get(key);
+            String shopJson = stringRedisTemplate.opsForValue().get(key);
             //3.4存在，返回
             if (StrUtil.isNotBlank(shopJson)) {//这只是查询到商铺数据才为true，null和""都为false
                 //有，直接返回
@@ -171,10 +217,8 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
             }
             //5.数据库有结果，写入redis
             stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(shop), CACHE_SHOP_TTL, TimeUnit.MINUTES);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
         } finally {
-            //6.释放锁
+            //6.释放锁（只释放自己获取到的锁）
             unLock(keyLock);
         }
         //返回
@@ -222,6 +266,19 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         stringRedisTemplate.delete(key);
     }
 
+    @Override
+    public Result saveShop(Shop shop) {
+        //1.写入数据库
+        save(shop);
+        //2.加入布隆过滤器，并删除之前可能缓存的空值
+        if (shopBloomFilter != null) {
+            shopBloomFilter.add(shop.getId());
+        }
+        cacheClient.delete(CACHE_SHOP_KEY + shop.getId());
+        //3.返回店铺id
+        return Result.ok(shop.getId());
+    }
+
     /**
      * 更新店铺信息
      *
@@ -238,8 +295,8 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         String key = CACHE_SHOP_KEY + shopId;
         //1.先操作数据库
         updateById(shop);
-        //2.再删除缓存
-        stringRedisTemplate.delete(key);
+        //2.再删除缓存（同时通知所有实例清除本地缓存）
+        cacheClient.delete(key);
         return Result.ok();
     }
 
@@ -295,9 +352,10 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
             Distance distance = result.getDistance();
              distanceMap.put(shopIdStr, distance);
         });
-        //5.根据id查询shop
-        String idStr = StrUtil.join(",", ids);
-        List<Shop> shops = query().in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list();
+        //5.根据id批量查询shop，先查缓存，未命中的一次in查询，按距离顺序返回
+        List<Shop> shops = cacheClient.queryBatchWithPassThrough(CACHE_SHOP_KEY, ids, Shop.class,
+                missIds -> listByIds(missIds).stream().collect(Collectors.toMap(Shop::getId, shop -> shop)),
+                CACHE_SHOP_TTL, TimeUnit.MINUTES);
         for (Shop shop : shops) {
             //5.封装距离
             shop.setDistance(distanceMap.get(shop.getId().toString()).getValue());
@@ -1,6 +1,5 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.bean.BeanUtil;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.Voucher;
@@ -8,32 +7,56 @@ import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.OrderResultNotifier;
 import com.hmdp.utils.RedisIdWorker;
-import com.hmdp.utils.SimpleRedisLock;
+import com.hmdp.utils.SeckillKeys;
+import com.hmdp.utils.SeckillRateLimiter;
+import com.hmdp.utils.SeckillWaitingRoom;
+import com.hmdp.utils.SoldOutCache;
 import com.hmdp.utils.UserHolder;
-import io.lettuce.core.RedisCommandInterruptedException;
+import com.hmdp.utils.VoucherOrderCodec;
 import lombok.extern.slf4j.Slf4j;
-import org.redisson.api.RLock;
-import org.redisson.api.RedissonClient;
-import org.springframework.aop.framework.AopContext;
 import org.springframework.beans.BeanUtils;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Range;
 import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StreamOperations;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.*;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_BACKLOG_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_DLQ_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_STREAM_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_TIMEOUT_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_QUOTA_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_VOUCHER_KEY;
 
 /**
  * <p>
@@ -53,130 +76,658 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Resource
     private StringRedisTemplate stringRedisTemplate;
     @Resource
-    private RedissonClient redissonClient;
+    private SoldOutCache soldOutCache;
+    @Resource
+    private SeckillRateLimiter seckillRateLimiter;
+    @Resource
+    private SeckillWaitingRoom seckillWaitingRoom;
+    @Resource
+    private OrderResultNotifier orderResultNotifier;
+    @Value("${seckill.result.poll-timeout:30000}")
+    private long resultPollTimeoutMillis;
+    @Value("${seckill.order.batch-size:1}")
+    private int batchSize;
+    @Value("${seckill.order.batch-linger:0}")
+    private long batchLingerMillis;
+    @Value("${seckill.order.partitions:1}")
+    private int partitions;
+    @Value("${seckill.order.pay-timeout:15}")
+    private long payTimeoutMinutes;
+    @Value("${seckill.order.timeout-batch-size:100}")
+    private int timeoutBatchSize;
+    @Value("${seckill.order.max-deliveries:5}")
+    private long maxDeliveries;
+    @Value("${seckill.order.retry-backoff:1000}")
+    private long retryBackoffMillis;
+    @Value("${seckill.order.trim-interval:60}")
+    private long trimIntervalSeconds;
+    @Value("${seckill.order.backlog-watermark:0}")
+    private long backlogWatermark;
     //定义阻塞队列
     //private BlockingQueue<VoucherOrder> orderTasks = new ArrayBlockingQueue<>(1024 * 1024);
-    //创建线程池
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
+    //创建线程池，每个分区一个消费线程
+    private ExecutorService seckillOrderExecutor;
+    //超时未支付订单扫描线程
+    private static final ScheduledExecutorService ORDER_TIMEOUT_EXECUTOR = Executors.newSingleThreadScheduledExecutor();
+    //pending-list恢复线程
+    private static final ScheduledExecutorService PENDING_RECOVERY_EXECUTOR = Executors.newSingleThreadScheduledExecutor();
+    //重试退避上限
+    private static final long MAX_RETRY_BACKOFF_MILLIS = 60_000;
+    //订单写库事务的超时时间（秒），超时后事务回滚，消息留在pending-list
+    private static final int ORDER_WRITE_TIMEOUT_SECONDS = 10;
+    //每个分区的消息队列统计：pending数量、最老pending消息的等待时间等
+    private final Map<String, Map<String, Object>> streamStats = new ConcurrentHashMap<>();
+    //最近一次读取的订单积压数量，每秒刷新
+    private volatile long backlog;
+    //订单还没有落库（消息仍在队列中）时，延后多久再检查
+    private static final long TIMEOUT_RETRY_MILLIS = 30_000;
+    //订单队列已经清空后，仍未落库的订单最多再检查的次数，之后移出超时队列
+    private static final int MAX_TIMEOUT_RETRIES = 10;
+    //未落库订单在队列清空后的检查次数
+    private final Map<Long, Integer> timeoutRetries = new ConcurrentHashMap<>();
+    //消费者组；消费者名称按实例唯一（pid@host），多个实例可以同时消费同一个分区
+    private static final String GROUP_NAME = "g1";
+    private static final String CONSUMER_NAME = "c-" + ManagementFactory.getRuntimeMXBean().getName();
     //定义脚本、加载lua脚本
     private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+    private static final DefaultRedisScript<Long> CANCEL_SCRIPT;
+    private static final DefaultRedisScript<Long> BACKLOG_ACK_SCRIPT;
+    private static final DefaultRedisScript<List> BUNDLE_SCRIPT;
+    private static final DefaultRedisScript<Long> BORROW_SCRIPT;
+    //秒杀脚本的返回值：用户所在分片库存不足，需要先从相邻分片借库存
+    private static final int SHARD_SHORTAGE = 11;
+    //秒杀券的库存分片数（创建后不再改变），第一次下单时从元数据读取
+    private final Map<Long, Integer> voucherShards = new ConcurrentHashMap<>();
+    //组合秒杀最多包含的优惠券数量
+    private static final int MAX_BUNDLE_SIZE = 10;
 
     static {
         SECKILL_SCRIPT = new DefaultRedisScript();
         SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
         SECKILL_SCRIPT.setResultType(Long.class);
+        CANCEL_SCRIPT = new DefaultRedisScript<>();
+        CANCEL_SCRIPT.setLocation(new ClassPathResource("seckill_cancel.lua"));
+        CANCEL_SCRIPT.setResultType(Long.class);
+        BACKLOG_ACK_SCRIPT = new DefaultRedisScript<>();
+        BACKLOG_ACK_SCRIPT.setLocation(new ClassPathResource("backlog_ack.lua"));
+        BACKLOG_ACK_SCRIPT.setResultType(Long.class);
+        BUNDLE_SCRIPT = new DefaultRedisScript<>();
+        BUNDLE_SCRIPT.setLocation(new ClassPathResource("seckill_bundle.lua"));
+        BUNDLE_SCRIPT.setResultType(List.class);
+        BORROW_SCRIPT = new DefaultRedisScript<>();
+        BORROW_SCRIPT.setLocation(new ClassPathResource("seckill_borrow.lua"));
+        BORROW_SCRIPT.setResultType(Long.class);
     }
 
-    /*@PostConstruct
+    @PostConstruct
     private void init() {
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
-    }*/
+        seckillOrderExecutor = Executors.newFixedThreadPool(partitions);
+        for (int i = 0; i < partitions; i++) {
+            String queueName = SECKILL_ORDER_STREAM_KEY + i;
+            //创建消费者组（不存在时）
+            createGroupIfAbsent(queueName);
+            seckillOrderExecutor.submit(new VoucherOrderHandler(queueName));
+        }
+        //每秒扫描一次超时未支付订单
+        ORDER_TIMEOUT_EXECUTOR.scheduleWithFixedDelay(this::handleTimeoutOrders, 1, 1, TimeUnit.SECONDS);
+        //每秒检查一次各分区的pending-list
+        PENDING_RECOVERY_EXECUTOR.scheduleWithFixedDelay(this::recoverPendingLists, 1, 1, TimeUnit.SECONDS);
+        //定期裁剪已经ack的消息，统计队列长度和内存占用
+        if (trimIntervalSeconds > 0) {
+            PENDING_RECOVERY_EXECUTOR.scheduleWithFixedDelay(this::trimStreams, trimIntervalSeconds, trimIntervalSeconds, TimeUnit.SECONDS);
+        }
+    }
     //线程销毁
     @PreDestroy
     public void destroy() {
+        ORDER_TIMEOUT_EXECUTOR.shutdownNow();
+        PENDING_RECOVERY_EXECUTOR.shutdownNow();
         // 关闭线程池
-        SECKILL_ORDER_EXECUTOR.shutdown();
+        seckillOrderExecutor.shutdown();
         try {
             // 等待现有任务完成
-            if (!SECKILL_ORDER_EXECUTOR.awaitTermination(10, TimeUnit.SECONDS)) {
+            if (!seckillOrderExecutor.awaitTermination(10, TimeUnit.SECONDS)) {
                 // 强制关闭
-                SECKILL_ORDER_EXECUTOR.shutdownNow();
+                seckillOrderExecutor.shutdownNow();
             }
         } catch (InterruptedException e) {
-            SECKILL_ORDER_EXECUTOR.shutdownNow();
+            seckillOrderExecutor.shutdownNow();
             Thread.currentThread().interrupt();
         }
     }
 
+    private void createGroupIfAbsent(String queueName) {
+        try {
+            stringRedisTemplate.opsForStream().createGroup(queueName, ReadOffset.from("0"), GROUP_NAME);
+        } catch (Exception e) {
+            //BUSYGROUP，消费者组已经存在
+            log.debug("消费者组 {} 已存在, stream: {}", GROUP_NAME, queueName);
+        }
+    }
 
     private class VoucherOrderHandler implements Runnable {
-        String queueName = "stream.orders";
+        private final String queueName;
+
+        VoucherOrderHandler(String queueName) {
+            this.queueName = queueName;
+        }
+
         @Override
         public void run() {
-            while (true) {
+            while (!Thread.currentThread().isInterrupted()) {
                 try {
-                    //1.获取队列中的信息 xreadgroup group g1 c1 count 1 block 2000 stream stream.order
-                    List<MapRecord<String, Object,Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
-                            StreamOffset.create(queueName, ReadOffset.lastConsumed())
-                    );
+                    //1.批量获取队列中的信息 xreadgroup group g1 c count N block 2000 streams stream.orders.p >
+                    List<MapRecord<String, Object, Object>> list = readBatch();
                     //2.判断消息获取是否成功
-                    if (list == null || list.isEmpty()){
+                    if (list.isEmpty()) {
                         continue;
                     }
-                    //3.解析消息中的订单数据
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> values = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(),true);
-                    //4.处理消息，创建订单
-                    handleVoucherOrder(voucherOrder);
-                    //5.ack确认
-                    stringRedisTemplate.opsForStream().acknowledge(queueName,"g1" , record.getId());
+                    //3.解析消息、批量创建订单、批量ack
+                    handleRecords(queueName, list);
                 } catch (Exception e) {
-                    log.error("处理pending-list订单异常", e);
-                    handlePendingList();
+                    //处理失败的消息留在pending-list中，由recoverPendingList按退避策略重试
+                    log.error("处理订单异常, stream: {}", queueName, e);
+                    try {
+                        Thread.sleep(1000);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
                 }
             }
         }
 
-        private void handlePendingList() {
-            while (true) {
+        /**
+         * 读取一批消息：第一次读取阻塞等待，读到消息后在linger时间内继续攒批，直到攒满batchSize
+         */
+        private List<MapRecord<String, Object, Object>> readBatch() {
+            List<MapRecord<String, Object, Object>> records = new ArrayList<>(batchSize);
+            Duration block = Duration.ofSeconds(2);
+            long deadline = 0;
+            while (records.size() < batchSize) {
+                List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                        Consumer.from(GROUP_NAME, CONSUMER_NAME),
+                        StreamReadOptions.empty().count(batchSize - records.size()).block(block),
+                        StreamOffset.create(queueName, ReadOffset.lastConsumed())
+                );
+                if (list == null || list.isEmpty()) {
+                    break;
+                }
+                records.addAll(list);
+                if (deadline == 0) {
+                    deadline = System.currentTimeMillis() + batchLingerMillis;
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
+                }
+                block = Duration.ofMillis(remaining);
+            }
+            return records;
+        }
+    }
+
+    /**
+     * 批量处理消息：整批一个事务写库、一次XACK；整批失败时退化为逐条处理，失败的消息留在pending-list
+     */
+    private void handleRecords(String queueName, List<MapRecord<String, Object, Object>> records) {
+        List<VoucherOrder> orders = new ArrayList<>(records.size());
+        for (MapRecord<String, Object, Object> record : records) {
+            //普通消息一个订单，组合秒杀消息多个订单
+            List<VoucherOrder> recordOrders = VoucherOrderCodec.decodeAll(record.getValue());
+            if (recordOrders.isEmpty()) {
+                log.error("订单消息格式不正确，消息ID: {}", record.getId());
+                continue;
+            }
+            orders.addAll(recordOrders);
+        }
+        RecordId[] recordIds = records.stream().map(MapRecord::getId).toArray(RecordId[]::new);
+        try {
+            if (!orders.isEmpty()) {
+                proxy.createVoucherOrders(orders);
+            }
+        } catch (Exception e) {
+            log.error("批量创建订单失败，逐条处理，批大小: {}", orders.size(), e);
+            for (MapRecord<String, Object, Object> record : records) {
                 try {
-                    //1.获取pending-list中的信息 xreadgroup group g1 c1 count 1 block 2000 stream stream.order 0
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
-                            StreamOffset.create(queueName, ReadOffset.from("0"))
-                    );
-                    //2.判断消息获取是否成功,penging-list中没有消息，则结束循环
-                    if (list == null || list.isEmpty()) {
-                        break;
-                    }
-                    //3.解析消息中的订单数据
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> values = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
-                    //4.处理消息，创建订单
-                    handleVoucherOrder(voucherOrder);
-                    //5.ack确认
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", record.getId());
-                } catch (Exception e) {
-                    log.error("处理pending-list订单异常", e);
-                    try {
-                        Thread.sleep(20);
-                    } catch (InterruptedException ex) {
-                        throw new RuntimeException(ex);
+                    List<VoucherOrder> recordOrders = VoucherOrderCodec.decodeAll(record.getValue());
+                    if (recordOrders.size() > 1) {
+                        //组合秒杀的订单在一个事务中创建
+                        proxy.createVoucherOrderBundle(recordOrders);
+                    } else {
+                        handleVoucherOrder(recordOrders.isEmpty() ? null : recordOrders.get(0));
                     }
+                    acknowledge(queueName, record.getId());
+                    notifyResult(recordOrders, OrderResultNotifier.SUCCESS, null);
+                } catch (Exception ex) {
+                    //失败的消息留在pending-list中
+                    log.error("创建订单失败，消息ID: {}", record.getId(), ex);
+                }
+            }
+            return;
+        }
+        //一次ack整批消息
+        acknowledge(queueName, recordIds);
+        notifyResult(orders, OrderResultNotifier.SUCCESS, null);
+    }
+
+    /**
+     * 写入订单处理结果并通知等待的客户端，通知失败不影响订单处理
+     */
+    private void notifyResult(List<VoucherOrder> orders, String status, String reason) {
+        try {
+            Map<Long, Long> userIds = new HashMap<>(orders.size());
+            for (VoucherOrder order : orders) {
+                if (order.getId() != null && order.getUserId() != null) {
+                    userIds.put(order.getId(), order.getUserId());
                 }
             }
+            orderResultNotifier.publish(userIds, status, reason);
+        } catch (Exception e) {
+            log.error("通知订单处理结果异常", e);
+        }
+    }
+
+    /**
+     * ack消息，并按实际ack的数量扣减订单积压数量（重复ack不会重复扣减）
+     */
+    private void acknowledge(String queueName, RecordId... recordIds) {
+        Long acked = stringRedisTemplate.opsForStream().acknowledge(queueName, GROUP_NAME, recordIds);
+        if (acked != null && acked > 0) {
+            stringRedisTemplate.execute(BACKLOG_ACK_SCRIPT, Collections.singletonList(SECKILL_BACKLOG_KEY), acked.toString());
+        }
+    }
+
+    private void recoverPendingLists() {
+        try {
+            refreshBacklog();
+        } catch (Exception e) {
+            log.error("读取订单积压数量异常", e);
         }
+        for (int i = 0; i < partitions; i++) {
+            String queueName = SECKILL_ORDER_STREAM_KEY + i;
+            try {
+                recoverPendingList(queueName);
+            } catch (Exception e) {
+                log.error("处理pending-list异常, stream: {}", queueName, e);
+            }
+        }
+    }
+
+    /**
+     * pending-list恢复：XPENDING查询每条消息的空闲时间和投递次数，
+     * 只处理空闲时间超过退避时间（base * 2^(投递次数-1)）的消息：超过最大投递次数的转入死信队列，其余XCLAIM给当前消费者重试。
+     * 死信也要等退避时间，否则最后一次投递可能还在处理中，退回库存后订单又落库会导致超卖；
+     * 其他实例崩溃后遗留的消息也通过空闲时间被认领
+     */
+    private void recoverPendingList(String queueName) {
+        StreamOperations<String, Object, Object> ops = stringRedisTemplate.opsForStream();
+        //1.统计pending数量和最老消息的等待时间
+        PendingMessagesSummary summary = ops.pending(queueName, GROUP_NAME);
+        long total = summary == null ? 0 : summary.getTotalPendingMessages();
+        Map<String, Object> stats = streamStats.computeIfAbsent(queueName, k -> new ConcurrentHashMap<>());
+        stats.put("pendingCount", total);
+        if (total == 0) {
+            stats.put("oldestPendingAgeMillis", 0L);
+            return;
+        }
+        //2.按id从小到大取出一批pending消息 xpending stream.orders.p g1 - + N
+        PendingMessages pending = ops.pending(queueName, GROUP_NAME, Range.unbounded(), batchSize);
+        if (!pending.isEmpty()) {
+            //消息id的前半部分是写入时间（毫秒）
+            stats.put("oldestPendingAgeMillis", System.currentTimeMillis() - pending.get(0).getId().getTimestamp());
+        }
+        List<RecordId> retryIds = new ArrayList<>();
+        for (PendingMessage message : pending) {
+            long deliveries = message.getTotalDeliveryCount();
+            if (message.getElapsedTimeSinceLastDelivery().toMillis() < Math.max(retryBackoff(deliveries), processingTimeout())) {
+                //最近一次投递可能还在处理中
+                continue;
+            }
+            if (deliveries >= maxDeliveries) {
+                deadLetter(queueName, message);
+            } else {
+                retryIds.add(message.getId());
+            }
+        }
+        if (retryIds.isEmpty()) {
+            return;
+        }
+        //3.认领需要重试的消息（XCLAIM会增加投递次数），再按批处理；
+        //min-idle不小于最长处理时间，查询之后又被其他消费者认领并开始处理的消息不会被重复认领
+        List<MapRecord<String, Object, Object>> records = ops.claim(queueName, GROUP_NAME, CONSUMER_NAME,
+                Duration.ofMillis(Math.max(retryBackoffMillis, processingTimeout())), retryIds.toArray(new RecordId[0]));
+        if (records != null && !records.isEmpty()) {
+            handleRecords(queueName, records);
+        }
+    }
+
+    private void refreshBacklog() {
+        String value = stringRedisTemplate.opsForValue().get(SECKILL_BACKLOG_KEY);
+        backlog = value == null ? 0 : Long.parseLong(value);
+        Map<String, Object> stats = streamStats.computeIfAbsent(SECKILL_BACKLOG_KEY, k -> new ConcurrentHashMap<>());
+        stats.put("count", backlog);
+        stats.put("watermark", backlogWatermark);
+    }
+
+    private void trimStreams() {
+        for (int i = 0; i < partitions; i++) {
+            String queueName = SECKILL_ORDER_STREAM_KEY + i;
+            try {
+                trimStream(queueName);
+            } catch (Exception e) {
+                log.error("裁剪消息队列异常, stream: {}", queueName, e);
+            }
+        }
+        try {
+            //死信队列不裁剪，只统计
+            recordStreamSize(SECKILL_ORDER_DLQ_KEY);
+        } catch (Exception e) {
+            log.error("统计死信队列异常", e);
+        }
+    }
+
+    /**
+     * 裁剪已经ack的消息：比最老的pending消息更早、且已经投递过的消息都已处理完成，
+     * xtrim stream.orders.p minid ~ id，近似裁剪只删除整个宏节点，开销很小
+     */
+    private void trimStream(String queueName) {
+        //1.消费者组最后投递的消息id，之后的消息还没有被消费
+        String minId = stringRedisTemplate.opsForStream().groups(queueName).stream()
+                .filter(group -> GROUP_NAME.equals(group.groupName()))
+                .map(StreamInfo.XInfoGroup::lastDeliveredId)
+                .findFirst().orElse(null);
+        if (minId == null || "0-0".equals(minId)) {
+            return;
+        }
+        //2.还有pending消息时，从最老的pending消息开始保留
+        PendingMessagesSummary summary = stringRedisTemplate.opsForStream().pending(queueName, GROUP_NAME);
+        if (summary != null && summary.getTotalPendingMessages() > 0) {
+            minId = summary.minMessageId();
+        }
+        byte[] minIdBytes = minId.getBytes(StandardCharsets.UTF_8);
+        Long trimmed = stringRedisTemplate.execute((RedisCallback<Long>) connection -> (Long) connection.execute(
+                "XTRIM", queueName.getBytes(StandardCharsets.UTF_8), "MINID".getBytes(StandardCharsets.UTF_8),
+                "~".getBytes(StandardCharsets.UTF_8), minIdBytes));
+        if (trimmed != null && trimmed > 0) {
+            log.debug("裁剪消息队列 {}，删除 {} 条已处理的消息", queueName, trimmed);
+        }
+        //3.统计队列长度和内存占用
+        recordStreamSize(queueName);
+    }
+
+    private void recordStreamSize(String queueName) {
+        Long length = stringRedisTemplate.opsForStream().size(queueName);
+        Long bytes = stringRedisTemplate.execute((RedisCallback<Long>) connection -> (Long) connection.execute(
+                "MEMORY", "USAGE".getBytes(StandardCharsets.UTF_8), queueName.getBytes(StandardCharsets.UTF_8)));
+        Map<String, Object> stats = streamStats.computeIfAbsent(queueName, k -> new ConcurrentHashMap<>());
+        stats.put("length", length == null ? 0L : length);
+        stats.put("memoryBytes", bytes == null ? 0L : bytes);
+    }
+
+    /**
+     * 一批消息从投递到ack的最长时间：攒批等待时间 + 写库事务超时时间，空闲时间更短的消息可能还在处理中
+     */
+    private long processingTimeout() {
+        return batchLingerMillis + TimeUnit.SECONDS.toMillis(ORDER_WRITE_TIMEOUT_SECONDS);
+    }
+
+    private long retryBackoff(long deliveries) {
+        long exponent = Math.max(0, Math.min(deliveries - 1, 16));
+        return Math.min(retryBackoffMillis << exponent, MAX_RETRY_BACKOFF_MILLIS);
+    }
+
+    /**
+     * 转入死信队列 stream.orders.dlq，并ack原消息
+     */
+    private void deadLetter(String queueName, PendingMessage message) {
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                .range(queueName, Range.just(message.getIdAsString()));
+        if (records != null && !records.isEmpty()) {
+            Map<Object, Object> values = new HashMap<>(records.get(0).getValue());
+            values.put("source", queueName);
+            values.put("sourceId", message.getIdAsString());
+            values.put("deliveries", String.valueOf(message.getTotalDeliveryCount()));
+            stringRedisTemplate.opsForStream().add(StreamRecords.newRecord().in(SECKILL_ORDER_DLQ_KEY).ofMap(values));
+            //订单没有落库时，退回Redis中预扣的库存和购买记录，并移出超时队列
+            List<VoucherOrder> orders = new ArrayList<>();
+            for (VoucherOrder order : VoucherOrderCodec.decodeAll(records.get(0).getValue())) {
+                if (getById(order.getId()) == null) {
+                    orders.add(order);
+                }
+            }
+            if (!orders.isEmpty()) {
+                restoreRedisStock(orders);
+                notifyResult(orders, OrderResultNotifier.FAILED, "订单处理失败，库存已退回");
+            }
+        }
+        acknowledge(queueName, message.getId());
+        log.error("订单消息超过最大投递次数，转入死信队列, stream: {}, id: {}", queueName, message.getIdAsString());
+    }
+
+    @Override
+    public Result takeTicket(Long voucherId) {
+        Long position = seckillWaitingRoom.takeTicket(voucherId, UserHolder.getUser().getId());
+        if (position == null) {
+            return Result.fail("该秒杀券无需排队");
+        }
+        return Result.ok(position);
+    }
+
+    @Override
+    public Result queryTicket(Long voucherId) {
+        return Result.ok(seckillWaitingRoom.queryTicket(voucherId, UserHolder.getUser().getId()));
+    }
+
+    @Override
+    public DeferredResult<Result> awaitOrderResult(Long orderId) {
+        return orderResultNotifier.await(orderId, UserHolder.getUser().getId(), resultPollTimeoutMillis);
+    }
+
+    @Override
+    public Result queryStreamStats() {
+        return Result.ok(streamStats);
     }
 
+    @Lazy
+    @Autowired
     private IVoucherOrderService proxy;
 
     @Override
-    public Result seckillVoucher(Long voucherId) {
+    public Result seckillVoucher(Long voucherId, Integer quantity) {
+        if (quantity == null || quantity < 1) {
+            return Result.fail("购买数量不合法");
+        }
+        //本地售罄标记，已售罄直接返回，不访问redis
+        if (soldOutCache.isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
+        //订单积压超过水位线，直接拒绝（lua脚本中还会用实时的积压数量再判断一次）
+        if (backlogWatermark > 0 && backlog >= backlogWatermark) {
+            return Result.fail("系统繁忙，请稍后重试");
+        }
+        //本地令牌桶限流，超出速率的请求不访问redis
+        if (!seckillRateLimiter.tryAcquire(voucherId)) {
+            return Result.fail("请求过于频繁，请稍后重试");
+        }
         //获取用户
         Long userId = UserHolder.getUser().getId();
-        //获取订单id
+        //获取订单id（通过本地检查后才生成，lua脚本需要在同一次调用中把订单id写入消息队列）
         Long orderId = redisIdWorker.nextId("order");
-        //执行lua脚本
-        Long result = stringRedisTemplate.execute(
-                SECKILL_SCRIPT,
-                Collections.emptyList(),
-                voucherId.toString(), userId.toString(),String.valueOf(orderId)
-        );
+        //执行脚本前的时间作为售罄标记的版本，晚于它的库存恢复通知优先
+        long observedAt = System.currentTimeMillis();
+        //执行lua脚本，只传入用户所在分片的库存、下单用户、限购计数key
+        int shards = shardsOf(voucherId);
+        int home = SeckillKeys.homeShard(userId, shards);
+        List<String> keys = shardKeys(voucherId, shards, home);
+        List<String> args = new ArrayList<>(Arrays.asList(
+                voucherId.toString(), userId.toString(),String.valueOf(orderId), String.valueOf(partitions),
+                String.valueOf(System.currentTimeMillis() / 1000), quantity.toString(),
+                String.valueOf(System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(payTimeoutMinutes)),
+                String.valueOf(backlogWatermark), String.valueOf(System.currentTimeMillis()),
+                VoucherOrderCodec.encode(orderId, userId, voucherId, quantity), "0"
+        ));
+        Long result = stringRedisTemplate.execute(SECKILL_SCRIPT, keys, args.toArray());
+        if (result == SHARD_SHORTAGE) {
+            //用户所在分片库存不足，从相邻分片借库存后再执行一次，这次库存不足时直接返回1/5
+            borrowStock(voucherId, shards, home, quantity);
+            args.set(10, "1");
+            result = stringRedisTemplate.execute(SECKILL_SCRIPT, keys, args.toArray());
+        }
         //判断结果是否为0
-        if (result != 0) {
-            //不为0，如果为1，代表库存不足，如果为2，代表该用户已经下过单
-            return Result.fail(result == 1 ? "库存不足" : "不能重复下单");
+        if (result == 0) {
+            //2.结果为0，有购买资格，返回订单id
+            return Result.ok(orderId);
+        }
+        if (result == 1) {
+            //库存为0，记录售罄并通知其他实例（秒杀券没有加载时返回10，不会标记售罄）
+            soldOutCache.markSoldOut(voucherId, observedAt);
+        }
+        return Result.fail(seckillFailMessage(result.intValue()));
+    }
+
+    @Override
+    public Result seckillBundle(List<Long> voucherIds) {
+        //1.校验组合：2~MAX_BUNDLE_SIZE张不重复的秒杀券
+        if (voucherIds == null || voucherIds.size() < 2 || voucherIds.size() > MAX_BUNDLE_SIZE
+                || new HashSet<>(voucherIds).size() != voucherIds.size()) {
+            return Result.fail("组合优惠券不合法");
+        }
+        //2.本地检查：售罄、订单积压、限流，任何一张不通过都不访问redis
+        for (Long voucherId : voucherIds) {
+            if (soldOutCache.isSoldOut(voucherId)) {
+                return Result.fail("优惠券" + voucherId + "：库存不足");
+            }
+        }
+        if (backlogWatermark > 0 && backlog >= backlogWatermark) {
+            return Result.fail("系统繁忙，请稍后重试");
+        }
+        for (Long voucherId : voucherIds) {
+            if (!seckillRateLimiter.tryAcquire(voucherId)) {
+                return Result.fail("请求过于频繁，请稍后重试");
+            }
+        }
+        //3.每张优惠券一个订单id，整个组合编码成一条消息
+        Long userId = UserHolder.getUser().getId();
+        List<VoucherOrder> orders = new ArrayList<>(voucherIds.size());
+        for (Long voucherId : voucherIds) {
+            VoucherOrder order = new VoucherOrder();
+            order.setId(redisIdWorker.nextId("order"));
+            order.setUserId(userId);
+            order.setVoucherId(voucherId);
+            order.setQuantity(1);
+            orders.add(order);
+        }
+        long now = System.currentTimeMillis();
+        int[] shards = new int[orders.size()];
+        List<String> keys = new ArrayList<>(3 * orders.size());
+        List<String> args = new ArrayList<>(8 + 3 * orders.size());
+        args.add(userId.toString());
+        args.add(String.valueOf(partitions));
+        args.add(String.valueOf(now / 1000));
+        args.add(String.valueOf(now + TimeUnit.MINUTES.toMillis(payTimeoutMinutes)));
+        args.add(String.valueOf(backlogWatermark));
+        args.add(String.valueOf(now));
+        args.add(VoucherOrderCodec.encodeBundle(orders));
+        args.add(String.valueOf(orders.size()));
+        for (int i = 0; i < orders.size(); i++) {
+            Long voucherId = orders.get(i).getVoucherId();
+            shards[i] = shardsOf(voucherId);
+            keys.addAll(shardKeys(voucherId, shards[i], SeckillKeys.homeShard(userId, shards[i])));
+            args.add(voucherId.toString());
+            args.add(orders.get(i).getId().toString());
+            args.add("0");
+        }
+        //4.执行lua脚本，全部校验通过才扣减；某张券用户所在分片库存不足时，从相邻分片借库存后重试（每张券最多一次）
+        List<Long> result = stringRedisTemplate.execute(BUNDLE_SCRIPT, keys, args.toArray());
+        while (result.get(0).intValue() == SHARD_SHORTAGE) {
+            int i = result.get(1).intValue() - 1;
+            borrowStock(voucherIds.get(i), shards[i], SeckillKeys.homeShard(userId, shards[i]), 1);
+            args.set(10 + 3 * i, "1");
+            result = stringRedisTemplate.execute(BUNDLE_SCRIPT, keys, args.toArray());
+        }
+        int code = result.get(0).intValue();
+        if (code == 0) {
+            return Result.ok(orders.stream().map(VoucherOrder::getId).collect(Collectors.toList()));
+        }
+        int index = result.get(1).intValue();
+        if (index < 1) {
+            return Result.fail(seckillFailMessage(code));
+        }
+        Long failedVoucherId = voucherIds.get(index - 1);
+        if (code == 1) {
+            soldOutCache.markSoldOut(failedVoucherId, now);
+        }
+        return Result.fail("优惠券" + failedVoucherId + "：" + seckillFailMessage(code));
+    }
+
+    /**
+     * 秒杀券的库存分片数；元数据还没有加载时返回1且不缓存，秒杀脚本会返回10
+     */
+    private int shardsOf(Long voucherId) {
+        Integer shards = voucherShards.get(voucherId);
+        if (shards == null) {
+            Object value = stringRedisTemplate.opsForHash().get(SECKILL_VOUCHER_KEY + voucherId, "shards");
+            if (value == null) {
+                return 1;
+            }
+            shards = Integer.valueOf(value.toString());
+            voucherShards.put(voucherId, shards);
+        }
+        return shards;
+    }
+
+    /**
+     * 分片的库存、下单用户、限购计数key，同一个hash tag
+     */
+    private static List<String> shardKeys(Long voucherId, int shards, int shard) {
+        return Arrays.asList(
+                SeckillKeys.shardKey(SECKILL_STOCK_KEY, voucherId, shards, shard),
+                SeckillKeys.shardKey(SECKILL_ORDER_KEY, voucherId, shards, shard),
+                SeckillKeys.shardKey(SECKILL_QUOTA_KEY, voucherId, shards, shard));
+    }
+
+    /**
+     * 依次从相邻分片借库存加到用户所在分片，借够数量为止。
+     * 借出和加回是两条命令（分别只访问一个分片），两步之间进程退出时借出的库存丢失，只会少卖，由对账修正
+     */
+    private void borrowStock(Long voucherId, int shards, int home, int quantity) {
+        String homeKey = SeckillKeys.shardKey(SECKILL_STOCK_KEY, voucherId, shards, home);
+        long need = quantity;
+        for (int i = 1; i < shards && need > 0; i++) {
+            String key = SeckillKeys.shardKey(SECKILL_STOCK_KEY, voucherId, shards, (home + i) % shards);
+            Long taken = stringRedisTemplate.execute(BORROW_SCRIPT, Collections.singletonList(key), String.valueOf(need));
+            if (taken != null && taken > 0) {
+                stringRedisTemplate.opsForValue().increment(homeKey, taken);
+                need -= taken;
+            }
+        }
+    }
+
+    private static String seckillFailMessage(int code) {
+        switch (code) {
+            case 1:
+            case 5:
+                //库存为0 / 剩余库存少于购买数量
+                return "库存不足";
+            case 2:
+                return "不能重复下单";
+            case 3:
+                return "秒杀尚未开始";
+            case 4:
+                return "秒杀已经结束";
+            case 6:
+                return "超出限购数量";
+            case 7:
+                return "系统繁忙，请稍后重试";
+            case 8:
+                return "请求过于频繁，请稍后重试";
+            case 9:
+                return "还没有轮到您，请先排队";
+            case 10:
+                return "优惠券不存在或尚未开放";
+            default:
+                return "服务器异常";
         }
-        //2.结果为0，有购买资格
-        //获取代理对象
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
-        //返回订单id
-        return Result.ok(orderId);
     }
     /*    @Override
         public Result seckillVoucher(Long voucherId) {
@@ -246,32 +797,8 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
             return;
         }
 
-        // 获取锁 - 使用用户ID作为锁的key
-        RLock lock = redissonClient.getLock("lock:order:" + voucherOrder.getUserId());
-
-        // 获取锁
-        boolean isLock = lock.tryLock();
-        // 判断是否获取锁成功
-        if (!isLock) {
-            // 获取锁失败，返回失败或者重试
-            log.error("用户 {} 不允许重复下单", voucherOrder.getUserId());
-            return;
-        }
-
-        try {
-            // 检查代理对象是否为null
-            if (proxy == null) {
-                log.error("代理对象未初始化");
-                return;
-            }
-
-            proxy.createVoucherOrder(voucherOrder);
-        } finally {
-            // 释放锁
-            if (lock.isHeldByCurrentThread()) {
-                lock.unlock();
-            }
-        }
+        // 重复下单已经在lua脚本中原子校验，重复投递的消息由订单id主键去重，不再需要分布式锁
+        proxy.createVoucherOrder(voucherOrder);
     }
 
 
@@ -313,28 +840,151 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
             }
         }*/
     @Override
-    @Transactional
+    @Transactional(timeout = ORDER_WRITE_TIMEOUT_SECONDS)
     public void createVoucherOrder (VoucherOrder voucherOrder){
-        //5.一人一单
-        Long userId = voucherOrder.getUserId();
-
-        //5.1 查询订单
-        int count = query().eq("user_id", userId).eq("voucher_id", voucherOrder.getVoucherId()).count();//数据库操作
-        //5.2 判断是否存在
-        if (count > 0) {
-            //用户已经买过了
-            log.error("用户已经购买过一次");
+        //5.一人一单/限购数量已经在lua脚本中原子校验，这里不再查询订单数量
+        //6.创建订单，订单id已经存在（主键冲突）说明是重复投递的消息，不再扣减库存
+        int quantity = voucherOrder.getQuantity() == null ? 1 : voucherOrder.getQuantity();
+        voucherOrder.setQuantity(quantity);
+        if (getBaseMapper().insertIfAbsent(voucherOrder) == 0) {
+            log.info("订单已存在，订单ID: {}", voucherOrder.getId());
+            return;
         }
-        //6.扣减库存  数据库操作
+        //7.扣减库存  数据库操作
         boolean success = seckillVoucherService.update()
-                .setSql("stock=stock-1") //set stock=stock-1
-                .eq("voucher_id", voucherOrder.getVoucherId()).gt("stock", 0) //where id = ? and stock>0
+                .setSql("stock=stock-" + quantity) //set stock=stock-quantity
+                .eq("voucher_id", voucherOrder.getVoucherId()).ge("stock", quantity) //where id = ? and stock>=quantity
                 .update();
         if (!success) {
             log.error("库存不足");
         }
-        //7.创建订单
-        save(voucherOrder);
     }
-}
 
+    @Override
+    @Transactional(timeout = ORDER_WRITE_TIMEOUT_SECONDS)
+    public void createVoucherOrderBundle(List<VoucherOrder> voucherOrders) {
+        //同一个事务中逐个创建，已经创建过的订单跳过
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            createVoucherOrder(voucherOrder);
+        }
+    }
+
+    @Override
+    @Transactional(timeout = ORDER_WRITE_TIMEOUT_SECONDS)
+    public void createVoucherOrders(List<VoucherOrder> voucherOrders) {
+        //1.多行插入订单，批次中有重复投递的订单时抛出DuplicateKeyException，回滚后逐条处理，只为新插入的订单扣减库存
+        getBaseMapper().insertBatch(voucherOrders);
+        //2.按优惠券聚合扣减库存（购买数量之和） set stock = stock - k where voucher_id = ? and stock >= k
+        Map<Long, Integer> counts = voucherOrders.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, Collectors.summingInt(VoucherOrder::getQuantity)));
+        counts.forEach((voucherId, k) -> {
+            boolean success = seckillVoucherService.update()
+                    .setSql("stock = stock - " + k)
+                    .eq("voucher_id", voucherId).ge("stock", k)
+                    .update();
+            if (!success) {
+                log.error("库存不足，优惠券ID: {}，扣减数量: {}", voucherId, k);
+            }
+        });
+    }
+
+    /**
+     * 处理超时未支付订单：分批取出到期的订单，在数据库中取消并退回库存，再退回redis库存和用户购买记录
+     */
+    private void handleTimeoutOrders() {
+        try {
+            while (true) {
+                //1.取出一批到期的订单 zrangebyscore seckill:order:timeout 0 now limit 0 N
+                long now = System.currentTimeMillis();
+                Set<String> due = stringRedisTemplate.opsForZSet()
+                        .rangeByScore(SECKILL_ORDER_TIMEOUT_KEY, 0, now, 0, timeoutBatchSize);
+                if (due == null || due.isEmpty()) {
+                    return;
+                }
+                List<Long> orderIds = due.stream().map(Long::valueOf).collect(Collectors.toList());
+                //2.查询订单状态
+                Map<Long, VoucherOrder> orders = listByIds(orderIds).stream()
+                        .collect(Collectors.toMap(VoucherOrder::getId, o -> o));
+                List<Long> unpaid = new ArrayList<>(orderIds.size());
+                List<String> finished = new ArrayList<>();
+                String backlogValue = stringRedisTemplate.opsForValue().get(SECKILL_BACKLOG_KEY);
+                boolean drained = backlogValue == null || Long.parseLong(backlogValue) <= 0;
+                for (Long orderId : orderIds) {
+                    VoucherOrder order = orders.get(orderId);
+                    if (order == null) {
+                        //订单还没有落库：队列中还有消息时继续等待；队列已经清空仍然没有落库，
+                        //说明消息无法解析已经被丢弃，再检查几次后移出超时队列，避免永远重试
+                        int retries = drained ? timeoutRetries.merge(orderId, 1, Integer::sum) : timeoutRetries.getOrDefault(orderId, 0);
+                        if (retries >= MAX_TIMEOUT_RETRIES) {
+                            timeoutRetries.remove(orderId);
+                            finished.add(orderId.toString());
+                            log.error("订单队列清空后仍未落库，移出超时队列，订单ID: {}", orderId);
+                        } else {
+                            stringRedisTemplate.opsForZSet().add(SECKILL_ORDER_TIMEOUT_KEY, orderId.toString(), now + TIMEOUT_RETRY_MILLIS);
+                        }
+                        continue;
+                    }
+                    timeoutRetries.remove(orderId);
+                    if (Integer.valueOf(1).equals(order.getStatus())) {
+                        unpaid.add(orderId);
+                    } else {
+                        //已支付或已取消
+                        finished.add(orderId.toString());
+                    }
+                }
+                if (!finished.isEmpty()) {
+                    stringRedisTemplate.opsForZSet().remove(SECKILL_ORDER_TIMEOUT_KEY, finished.toArray());
+                }
+                //3.取消未支付订单，退回数据库库存
+                if (!unpaid.isEmpty()) {
+                    List<VoucherOrder> canceled = proxy.cancelTimeoutOrders(unpaid);
+                    //4.退回redis库存
+                    restoreRedisStock(canceled);
+                }
+                if (due.size() < timeoutBatchSize) {
+                    return;
+                }
+            }
+        } catch (Exception e) {
+            log.error("处理超时未支付订单异常", e);
+        }
+    }
+
+    private void restoreRedisStock(List<VoucherOrder> canceled) {
+        if (canceled.isEmpty()) {
+            return;
+        }
+        List<String> args = new ArrayList<>(canceled.size() * 4);
+        for (VoucherOrder order : canceled) {
+            args.add(order.getId().toString());
+            args.add(order.getVoucherId().toString());
+            args.add(order.getUserId().toString());
+            args.add(String.valueOf(order.getQuantity() == null ? 1 : order.getQuantity()));
+        }
+        stringRedisTemplate.execute(CANCEL_SCRIPT, Collections.emptyList(), args.toArray());
+        //有库存退回，清除售罄标记
+        canceled.stream().map(VoucherOrder::getVoucherId).distinct().forEach(soldOutCache::clear);
+        log.debug("取消超时未支付订单，数量: {}", canceled.size());
+    }
+
+    @Override
+    @Transactional
+    public List<VoucherOrder> cancelTimeoutOrders(List<Long> orderIds) {
+        //1.锁定仍未支付的订单 select * from tb_voucher_order where id in (...) and status = 1 for update
+        List<VoucherOrder> orders = query().in("id", orderIds).eq("status", 1).last("FOR UPDATE").list();
+        if (orders.isEmpty()) {
+            return orders;
+        }
+        //2.批量取消 update tb_voucher_order set status = 4 where id in (...)
+        List<Long> ids = orders.stream().map(VoucherOrder::getId).collect(Collectors.toList());
+        update().set("status", 4).in("id", ids).update();
+        //3.按优惠券聚合退回库存 set stock = stock + k where voucher_id = ?
+        Map<Long, Integer> counts = orders.stream().collect(Collectors.groupingBy(VoucherOrder::getVoucherId,
+                Collectors.summingInt(o -> o.getQuantity() == null ? 1 : o.getQuantity())));
+        counts.forEach((voucherId, k) -> seckillVoucherService.update()
+                .setSql("stock = stock + " + k)
+                .eq("voucher_id", voucherId)
+                .update());
+        return orders;
+    }
+}
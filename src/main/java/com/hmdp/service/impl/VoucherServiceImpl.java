@@ -3,22 +3,17 @@ package com.hmdp.service.impl;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Voucher;
-import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.redis.core.RedisTemplate;
-import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
 import java.util.List;
 
-import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
-
 /**
  * <p>
  *  服务实现类
@@ -32,8 +27,6 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
 
     @Resource
     private ISeckillVoucherService seckillVoucherService;
-    @Resource
-    private StringRedisTemplate stringRedisTemplate ;
 
     @Override
     public Result queryVoucherOfShop(Long shopId) {
@@ -52,10 +45,17 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         SeckillVoucher seckillVoucher = new SeckillVoucher();
         seckillVoucher.setVoucherId(voucher.getId());
         seckillVoucher.setStock(voucher.getStock());
+        seckillVoucher.setStockShards(voucher.getStockShards() == null ? 1 : Math.max(1, voucher.getStockShards()));
+        seckillVoucher.setUserLimit(voucher.getUserLimit() == null ? 1 : Math.max(1, voucher.getUserLimit()));
+        seckillVoucher.setRateLimit(voucher.getRateLimit() == null ? 0 : Math.max(0, voucher.getRateLimit()));
+        seckillVoucher.setUserRateLimit(voucher.getUserRateLimit() == null ? 0 : Math.max(0, voucher.getUserRateLimit()));
+        seckillVoucher.setWaitingRoom(Boolean.TRUE.equals(voucher.getWaitingRoom()));
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
-        //保存秒杀库存到redis中
-        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucher.getId(), voucher.getStock().toString());
+        //保存秒杀库存和资格元数据到redis中
+        seckillVoucherService.publishToRedis(seckillVoucher, true);
+        //登记开始/结束时的定时任务
+        seckillVoucherService.scheduleVoucher(seckillVoucher);
     }
 }
@@ -1,5 +1,6 @@
 package com.hmdp.utils;
 
+import cn.hutool.core.lang.UUID;
 import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONObject;
@@ -8,14 +9,39 @@ import com.hmdp.entity.Shop;
 import io.lettuce.core.GeoArgs;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Component;
 
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 
 import static com.hmdp.utils.RedisConstants.*;
@@ -24,14 +50,59 @@ import static com.hmdp.utils.RedisConstants.*;
 @Component
 /**
  * 基于StringRedisTemplate封装一个缓存工具类
+ * 可选的本地缓存（L1）：cache.local.prefixes中列出的key前缀，在redis前面再加一层进程内缓存，
+ * 通过delete删除key时经redis发布订阅通知所有实例清除本地缓存
+ * 缓存未命中时同一个key的并发请求合并为一次数据库查询（single-flight），
+ * 开启cache.lease.enabled后再用redis租约让其他实例等待重建完成的通知，而不是各自查询数据库
+ * queryBatchWithPassThrough：一次MGET批量读取，未命中的id用一次IN查询加载，再用管道批量写回
+ * queryWithEarlyRefresh：随着过期时间临近，按概率在后台提前刷新（XFetch），热点key在真正过期前就会被刷新
  */
-public class CacheClient {
+public class CacheClient implements MessageListener {
     private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
+    private static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
+    static {
+        UNLOCK_SCRIPT = new DefaultRedisScript<>();
+        UNLOCK_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
+        UNLOCK_SCRIPT.setResultType(Long.class);
+    }
+
+    //本地缓存的有效期（秒），不超过redis中的有效期
+    @Value("${cache.local.ttl:30}")
+    private long localTtlSeconds;
+
+    //启用本地缓存的key前缀 -> 该前缀的本地缓存，每个前缀独立的容量和淘汰
+    private final Map<String, LocalCache> localCaches = new HashMap<>();
+    //按key前缀注册的布隆过滤器，缓存未命中时先判断id是否存在
+    private final Map<String, RedisBloomFilter> bloomFilters = new ConcurrentHashMap<>();
+    //正在查询数据库的key，同一个key的并发请求共享同一个结果
+    private final Map<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+    //等待其他实例重建完成通知的key
+    private final Map<String, CompletableFuture<Void>> leaseWaiters = new ConcurrentHashMap<>();
 
+    //是否启用跨实例重建租约
+    @Value("${cache.lease.enabled:false}")
+    private boolean leaseEnabled;
+    //没有拿到租约时等待重建完成通知的最长时间（毫秒），超时后自己查询数据库
+    @Value("${cache.lease.wait:1000}")
+    private long leaseWaitMillis;
+    //提前刷新的激进程度，越大越早刷新，1.0为XFetch论文推荐值
+    @Value("${cache.xfetch.beta:1.0}")
+    private double xfetchBeta;
+    //正在后台提前刷新的key，避免同一个key重复提交刷新任务
+    private final Set<String> refreshing = ConcurrentHashMap.newKeySet();
 
     private final StringRedisTemplate stringRedisTemplate;
-    public CacheClient(StringRedisTemplate stringRedisTemplate){
+    public CacheClient(StringRedisTemplate stringRedisTemplate, RedisMessageListenerContainer container,
+                       @Value("${cache.local.prefixes:}") List<String> localPrefixes,
+                       @Value("${cache.local.max-size:10000}") int localMaxSize){
         this.stringRedisTemplate = stringRedisTemplate;
+        for (String prefix : localPrefixes) {
+            if (StrUtil.isNotBlank(prefix)) {
+                localCaches.put(prefix.trim(), new LocalCache(localMaxSize));
+            }
+        }
+        container.addMessageListener(this, new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+        container.addMessageListener(this, new ChannelTopic(CACHE_LOADED_CHANNEL));
     }
     /**
      * 将任意java对象序列化为json并存储在string类型的key中，并且可以设置TTL过期时间
@@ -52,16 +123,78 @@ public class CacheClient {
         stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
     }
 
+    /**
+     * 将任意java对象序列化为json存储，同时记录逻辑过期时间和重建耗时，redis中的key在过期时间到达时真正删除
+     */
+    public void setWithEarlyRefresh(String key, Object value, long deltaMillis, Long time, TimeUnit unit){
+        RedisData redisData = new RedisData();
+        redisData.setData(value);
+        redisData.setExpireTime(LocalDateTime.now().plusNanos(unit.toNanos(time)));
+        redisData.setDelta(deltaMillis);
+        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData), time, unit);
+    }
+
+    /**
+     * 为key前缀注册布隆过滤器，queryWithPassThrough缓存未命中时，过滤器判断不存在的id直接返回null，不写空值也不查数据库
+     */
+    public void registerBloomFilter(String keyPrefix, RedisBloomFilter bloomFilter) {
+        bloomFilters.put(keyPrefix, bloomFilter);
+    }
+
+    /**
+     * 删除缓存（包括queryWithEarlyRefresh写入的同名缓存），并通知所有实例清除本地缓存
+     */
+    public void delete(String key) {
+        stringRedisTemplate.delete(Arrays.asList(key, CACHE_XFETCH_KEY + key));
+        invalidateLocal(key);
+        stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, key);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String key = new String(message.getBody(), StandardCharsets.UTF_8);
+        if (CACHE_LOADED_CHANNEL.equals(new String(message.getChannel(), StandardCharsets.UTF_8))) {
+            //其他实例重建完成，唤醒等待的请求
+            CompletableFuture<Void> waiter = leaseWaiters.remove(key);
+            if (waiter != null) {
+                waiter.complete(null);
+            }
+            return;
+        }
+        invalidateLocal(key);
+    }
+
+    private void invalidateLocal(String key) {
+        for (Map.Entry<String, LocalCache> entry : localCaches.entrySet()) {
+            if (key.startsWith(entry.getKey())) {
+                entry.getValue().invalidate(key);
+            }
+        }
+    }
+
     /**
      * 根据指定的key获取缓存数据，并反序列化为指定类型，利用缓存空值的方式解决缓存穿透问题
      */
     public <R,ID> R queryWithPassThrough(String keyPrefix, ID id, Class<R> Type, Function<ID,R> dbFallback,Long time, TimeUnit unit) {
-        //1.根据id查询redis中是否有店铺信息
         String key = keyPrefix + id;
+        //0.启用本地缓存时先查本地缓存，命中直接返回，不访问redis
+        LocalCache localCache = localCaches.get(keyPrefix);
+        boolean local = localCache != null;
+        long localTtl = Math.min(TimeUnit.SECONDS.toMillis(localTtlSeconds), unit.toMillis(time));
+        if (local) {
+            Object cached = localCache.get(key);
+            if (Type.isInstance(cached)) {
+                return Type.cast(cached);
+            }
+        }
+        //1.根据id查询redis中是否有店铺信息
         String json = stringRedisTemplate.opsForValue().get(key);
         if (StrUtil.isNotBlank(json)) {//这只是查询到商铺数据才为true，null和""都为false
             //2.有，直接返回
             R r = JSONUtil.toBean(json, Type);//将json转换为Java对象
+            if (local) {
+                localCache.put(key, r, localTtl);
+            }
             return r;
         }
         //判断命中的是否是空值
@@ -69,19 +202,78 @@ public class CacheClient {
             //返回一个错误信息
             return null;
         }
-        //3。没有，查询数据库
-        R r = dbFallback.apply(id);
-        //4..数据库没有查到结果，将空值写入redis
-        if (r == null){
-            stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
+        //3.布隆过滤器判断一定不存在，直接返回
+        RedisBloomFilter bloomFilter = bloomFilters.get(keyPrefix);
+        if (bloomFilter != null && !bloomFilter.mightContain(id)) {
             return null;
         }
-        //5.数据库有结果，写入redis
-        this.set(key, r, time, unit);
+        //4.没有，查询数据库并写入redis，同一个key同时只有一个线程查询
+        R r = singleFlight(key, () -> loadWithLease(key, id, Type, dbFallback, time, unit));
+        if (r != null && local) {
+            localCache.put(key, r, localTtl);
+        }
         //返回
         return r;
     }
 
+    /**
+     * 批量查询：一次MGET读取全部key，未命中的id交给batchDbFallback一次查询（where id in (...)），
+     * 查询结果和数据库中不存在的空值通过管道一次写回redis，结果按传入id的顺序返回，不存在的id跳过。
+     * 不经过本地缓存和布隆过滤器，保证任意页大小都只需要两次redis往返
+     */
+    public <R, ID> List<R> queryBatchWithPassThrough(String keyPrefix, List<ID> ids, Class<R> type,
+                                                     Function<Collection<ID>, Map<ID, R>> batchDbFallback, Long time, TimeUnit unit) {
+        if (ids == null || ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        //1.一次MGET查询全部key
+        List<String> keys = new ArrayList<>(ids.size());
+        for (ID id : ids) {
+            keys.add(keyPrefix + id);
+        }
+        List<String> jsons = stringRedisTemplate.opsForValue().multiGet(keys);
+        //2.解析命中的数据，收集未命中的id（命中空值的id直接跳过）
+        Map<ID, R> found = new HashMap<>(ids.size() * 2);
+        List<ID> misses = new ArrayList<>();
+        for (int i = 0; i < ids.size(); i++) {
+            String json = jsons == null ? null : jsons.get(i);
+            if (StrUtil.isNotBlank(json)) {
+                found.put(ids.get(i), JSONUtil.toBean(json, type));
+            } else if (json == null) {
+                misses.add(ids.get(i));
+            }
+        }
+        if (!misses.isEmpty()) {
+            //3.未命中的id一次查询数据库
+            Map<ID, R> loaded = batchDbFallback.apply(misses);
+            found.putAll(loaded);
+            //4.通过管道批量写回，数据库中不存在的写入空值
+            long seconds = unit.toSeconds(time);
+            long nullSeconds = TimeUnit.MINUTES.toSeconds(CACHE_NULL_TTL);
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (ID id : misses) {
+                    R r = loaded.get(id);
+                    byte[] rawKey = (keyPrefix + id).getBytes(StandardCharsets.UTF_8);
+                    if (r == null) {
+                        connection.setEx(rawKey, nullSeconds, new byte[0]);
+                    } else {
+                        connection.setEx(rawKey, seconds, JSONUtil.toJsonStr(r).getBytes(StandardCharsets.UTF_8));
+                    }
+                }
+                return null;
+            });
+        }
+        //5.按传入顺序返回
+        List<R> result = new ArrayList<>(ids.size());
+        for (ID id : ids) {
+            R r = found.get(id);
+            if (r != null) {
+                result.add(r);
+            }
+        }
+        return result;
+    }
+
     /**
      * 根据指定的key获取缓存数据，并反序列化为指定类型，需要利用逻辑过期解决缓存击穿问题
      */
@@ -129,6 +321,154 @@ public class CacheClient {
         return r;
     }
 
+    /**
+     * 同一个key的并发调用只执行一次loader，其他线程等待并共享结果（包括异常）
+     */
+    @SuppressWarnings("unchecked")
+    private <R> R singleFlight(String key, Supplier<R> loader) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> running = inFlight.putIfAbsent(key, future);
+        if (running != null) {
+            //已经有线程在查询，等待它的结果
+            try {
+                return (R) running.join();
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause();
+                throw cause instanceof RuntimeException ? (RuntimeException) cause : e;
+            }
+        }
+        try {
+            R r = loader.get();
+            future.complete(r);
+            return r;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    /**
+     * 跨实例重建：拿到租约的实例查询数据库，其他实例等待重建完成的通知后重新读取redis
+     */
+    private <R, ID> R loadWithLease(String key, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        if (!leaseEnabled) {
+            return load(key, id, dbFallback, time, unit);
+        }
+        String leaseKey = LOCK_CACHE_KEY + key;
+        String token = UUID.randomUUID().toString(true);
+        //1.拿到租约，查询数据库，完成后释放租约并通知其他实例
+        if (BooleanUtil.isTrue(stringRedisTemplate.opsForValue().setIfAbsent(leaseKey, token, LOCK_SHOP_TTL, TimeUnit.SECONDS))) {
+            try {
+                //再次检查redis，其他实例可能刚刚重建完成
+                String json = stringRedisTemplate.opsForValue().get(key);
+                if (json != null) {
+                    return StrUtil.isBlank(json) ? null : JSONUtil.toBean(json, type);
+                }
+                return load(key, id, dbFallback, time, unit);
+            } finally {
+                stringRedisTemplate.execute(UNLOCK_SCRIPT, Collections.singletonList(leaseKey), token);
+                stringRedisTemplate.convertAndSend(CACHE_LOADED_CHANNEL, key);
+            }
+        }
+        //2.没拿到租约，先登记再检查一次redis，避免在登记之前已经重建完成而错过通知
+        CompletableFuture<Void> waiter = leaseWaiters.computeIfAbsent(key, k -> new CompletableFuture<>());
+        try {
+            String json = stringRedisTemplate.opsForValue().get(key);
+            if (json == null) {
+                waiter.get(leaseWaitMillis, TimeUnit.MILLISECONDS);
+                json = stringRedisTemplate.opsForValue().get(key);
+            }
+            if (json != null) {
+                return StrUtil.isBlank(json) ? null : JSONUtil.toBean(json, type);
+            }
+        } catch (TimeoutException | ExecutionException e) {
+            log.debug("等待缓存重建超时，key:{}", key);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("等待缓存重建被中断", e);
+        } finally {
+            leaseWaiters.remove(key, waiter);
+        }
+        //3.超时或者重建失败，自己查询数据库
+        return load(key, id, dbFallback, time, unit);
+    }
+
+    /**
+     * 查询数据库并写入redis，数据库没有时写入空值
+     */
+    private <R, ID> R load(String key, ID id, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        R r = dbFallback.apply(id);
+        //1.数据库没有查到结果，将空值写入redis
+        if (r == null){
+            stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
+            return null;
+        }
+        //2.数据库有结果，写入redis
+        this.set(key, r, time, unit);
+        return r;
+    }
+
+    /**
+     * 根据指定的key获取缓存数据，利用概率提前刷新（XFetch）避免缓存过期瞬间大量请求同时重建：
+     * 命中时若 now - delta * beta * ln(rand) >= expireTime，在后台刷新缓存并直接返回当前数据，
+     * 离过期越近、重建越慢，提前刷新的概率越大；未命中时与queryWithPassThrough相同。
+     * 数据存放在 xfetch:{keyPrefix}{id}，与其他查询方法使用同一个keyPrefix时互不影响
+     */
+    public <R, ID> R queryWithEarlyRefresh(String keyPrefix, ID id, Class<R> type, Function<ID,R> dbFallback, Long time, TimeUnit unit) {
+        String key = CACHE_XFETCH_KEY + keyPrefix + id;
+        //1.根据id查询redis
+        String json = stringRedisTemplate.opsForValue().get(key);
+        if (StrUtil.isNotBlank(json)) {
+            //2.命中，判断是否需要提前刷新
+            RedisData redisData = JSONUtil.toBean(json, RedisData.class);
+            R r = JSONUtil.toBean((JSONObject) redisData.getData(), type);
+            long expireAt = redisData.getExpireTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+            long delta = redisData.getDelta() == null ? 0 : redisData.getDelta();
+            //1 - nextDouble()取值(0,1]，ln为负数，gap >= 0
+            double gap = -delta * xfetchBeta * Math.log(1 - ThreadLocalRandom.current().nextDouble());
+            if (System.currentTimeMillis() + gap >= expireAt && refreshing.add(key)) {
+                //3.后台刷新，当前请求直接返回未过期的数据
+                CACHE_REBUILD_EXECUTOR.submit(() -> {
+                    try {
+                        loadWithDelta(key, id, dbFallback, time, unit);
+                    } catch (Exception e) {
+                        log.error("提前刷新缓存失败，key:{}", key, e);
+                    } finally {
+                        refreshing.remove(key);
+                    }
+                });
+            }
+            return r;
+        }
+        //判断命中的是否是空值
+        if (json != null) {
+            return null;
+        }
+        //4.布隆过滤器判断一定不存在，直接返回
+        RedisBloomFilter bloomFilter = bloomFilters.get(keyPrefix);
+        if (bloomFilter != null && !bloomFilter.mightContain(id)) {
+            return null;
+        }
+        //5.未命中，查询数据库并记录耗时，同一个key同时只有一个线程查询
+        return singleFlight(key, () -> loadWithDelta(key, id, dbFallback, time, unit));
+    }
+
+    /**
+     * 查询数据库并连同耗时写入redis，数据库没有时写入空值
+     */
+    private <R, ID> R loadWithDelta(String key, ID id, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        long begin = System.currentTimeMillis();
+        R r = dbFallback.apply(id);
+        if (r == null) {
+            stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
+            return null;
+        }
+        setWithEarlyRefresh(key, r, System.currentTimeMillis() - begin, time, unit);
+        return r;
+    }
+
     private boolean tryLock(String key){
         Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", LOCK_SHOP_TTL, TimeUnit.SECONDS);
         return BooleanUtil.isTrue(flag);
@@ -0,0 +1,108 @@
+package com.hmdp.utils;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 进程内缓存（L1）：基于ConcurrentHashMap，读取不加锁，每个条目有独立的过期时间。
+ * 近似LRU：命中时只记录最后访问时间，条目数超过maxSize时由一个写线程批量淘汰，
+ * 先清除过期条目，仍然超出时淘汰最久未访问的条目，直到剩下maxSize的90%，淘汰的开销分摊到多次写入上。
+ * 缓存的是反序列化后的对象，命中时调用方拿到的是同一个对象，不应修改
+ */
+public class LocalCache {
+    private final int maxSize;
+    private final Map<String, Entry> entries;
+    //同一时刻只有一个线程执行淘汰，其他线程直接返回
+    private final AtomicBoolean evicting = new AtomicBoolean();
+
+    public LocalCache(int maxSize) {
+        this.maxSize = Math.max(1, maxSize);
+        this.entries = new ConcurrentHashMap<>(Math.min(this.maxSize, 1 << 16));
+    }
+
+    /**
+     * @return 缓存的对象；未命中或已过期返回null
+     */
+    public Object get(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        if (entry.expireAt < now) {
+            entries.remove(key, entry);
+            return null;
+        }
+        entry.accessedAt = now;
+        return entry.value;
+    }
+
+    public void put(String key, Object value, long ttlMillis) {
+        if (value == null || ttlMillis <= 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        entries.put(key, new Entry(value, now + ttlMillis, now));
+        if (entries.size() > maxSize) {
+            evict(now);
+        }
+    }
+
+    public void invalidate(String key) {
+        entries.remove(key);
+    }
+
+    private void evict(long now) {
+        if (!evicting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            //1.清除过期条目
+            entries.values().removeIf(entry -> entry.expireAt < now);
+            int target = maxSize - maxSize / 10;
+            int excess = entries.size() - target;
+            if (excess <= 0) {
+                return;
+            }
+            //2.找出第excess小的访问时间，淘汰不晚于它的条目
+            long[] accessed = new long[entries.size()];
+            int n = 0;
+            for (Entry entry : entries.values()) {
+                if (n == accessed.length) {
+                    break;
+                }
+                accessed[n++] = entry.accessedAt;
+            }
+            if (n == 0) {
+                return;
+            }
+            Arrays.sort(accessed, 0, n);
+            long threshold = accessed[Math.min(excess, n) - 1];
+            Iterator<Entry> iterator = entries.values().iterator();
+            while (iterator.hasNext() && excess > 0) {
+                if (iterator.next().accessedAt <= threshold) {
+                    iterator.remove();
+                    excess--;
+                }
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    private static class Entry {
+        private final Object value;
+        private final long expireAt;
+        //最后访问时间，只用于近似LRU淘汰，并发更新丢失也没有影响
+        private volatile long accessedAt;
+
+        Entry(Object value, long expireAt, long accessedAt) {
+            this.value = value;
+            this.expireAt = expireAt;
+            this.accessedAt = accessedAt;
+        }
+    }
+}
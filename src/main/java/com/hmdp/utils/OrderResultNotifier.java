@@ -0,0 +1,147 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.dto.Result;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_RESULT_CHANNEL;
+import static com.hmdp.utils.RedisConstants.SECKILL_RESULT_KEY;
+
+/**
+ * 订单处理结果通知：消费者把订单的最终状态写入短期有效的hash seckill:result:{orderId}，并通过发布订阅通知所有实例；
+ * 客户端长轮询等待结果，收到通知后立即返回，不再反复查询订单
+ */
+@Slf4j
+@Component
+public class OrderResultNotifier implements MessageListener {
+    public static final String SUCCESS = "success";
+    public static final String FAILED = "failed";
+    public static final String PENDING = "pending";
+
+    @Value("${seckill.result.ttl:600}")
+    private long resultTtlSeconds;
+
+    //本实例上等待结果的请求，key：订单id
+    private final Map<Long, Set<Waiter>> waiters = new ConcurrentHashMap<>();
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    public OrderResultNotifier(StringRedisTemplate stringRedisTemplate, RedisMessageListenerContainer container) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        container.addMessageListener(this, new ChannelTopic(SECKILL_RESULT_CHANNEL));
+    }
+
+    /**
+     * 写入订单结果并通知等待的请求
+     * @param userIds key：订单id，value：下单用户id
+     */
+    public void publish(Map<Long, Long> userIds, String status, String reason) {
+        if (userIds.isEmpty()) {
+            return;
+        }
+        //1.管道写入结果hash并设置有效期
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            userIds.forEach((orderId, userId) -> {
+                Map<String, String> result = new HashMap<>(4);
+                result.put("status", status);
+                result.put("userId", String.valueOf(userId));
+                if (reason != null) {
+                    result.put("reason", reason);
+                }
+                String key = SECKILL_RESULT_KEY + orderId;
+                conn.hMSet(key, result);
+                conn.expire(key, resultTtlSeconds);
+            });
+            return null;
+        });
+        //2.一条消息通知整批订单
+        String message = userIds.keySet().stream().map(String::valueOf).collect(Collectors.joining(","));
+        stringRedisTemplate.convertAndSend(SECKILL_RESULT_CHANNEL, message);
+    }
+
+    /**
+     * 等待订单结果：先注册等待再查询结果，避免在两步之间到达的通知丢失
+     */
+    public DeferredResult<Result> await(Long orderId, Long userId, long timeoutMillis) {
+        Map<String, Object> pending = new HashMap<>(2);
+        pending.put("status", PENDING);
+        DeferredResult<Result> deferred = new DeferredResult<>(timeoutMillis, Result.ok(pending));
+        Waiter waiter = new Waiter(userId, deferred);
+        //1.注册等待
+        waiters.computeIfAbsent(orderId, k -> ConcurrentHashMap.newKeySet()).add(waiter);
+        deferred.onCompletion(() -> removeWaiter(orderId, waiter));
+        //2.结果已经存在，直接返回
+        complete(orderId, Collections.singleton(waiter));
+        return deferred;
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        for (String id : StrUtil.split(body, ',')) {
+            try {
+                Long orderId = Long.valueOf(id);
+                Set<Waiter> set = waiters.get(orderId);
+                //只处理本实例上有请求在等待的订单
+                if (set != null && !set.isEmpty()) {
+                    complete(orderId, set);
+                }
+            } catch (Exception e) {
+                log.error("处理订单结果通知异常，订单ID: {}", id, e);
+            }
+        }
+    }
+
+    private void complete(Long orderId, Collection<Waiter> targets) {
+        Map<Object, Object> result = stringRedisTemplate.opsForHash().entries(SECKILL_RESULT_KEY + orderId);
+        if (result.isEmpty()) {
+            return;
+        }
+        Object owner = result.remove("userId");
+        for (Waiter waiter : targets) {
+            //只能查询自己的订单
+            if (owner != null && owner.toString().equals(String.valueOf(waiter.userId))) {
+                waiter.deferred.setResult(Result.ok(result));
+            } else {
+                waiter.deferred.setResult(Result.fail("订单不存在"));
+            }
+        }
+    }
+
+    private void removeWaiter(Long orderId, Waiter waiter) {
+        waiters.computeIfPresent(orderId, (k, set) -> {
+            set.remove(waiter);
+            return set.isEmpty() ? null : set;
+        });
+    }
+
+    private static class Waiter {
+        private final Long userId;
+        private final DeferredResult<Result> deferred;
+
+        Waiter(Long userId, DeferredResult<Result> deferred) {
+            this.userId = userId;
+            this.deferred = deferred;
+        }
+    }
+}
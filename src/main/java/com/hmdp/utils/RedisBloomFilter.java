@@ -0,0 +1,174 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongFunction;
+
+/**
+ * 基于redis位图的布隆过滤器：位数和哈希函数个数由预计元素数量和误判率计算，
+ * 每个元素的k个位置通过两个64位哈希值组合得到（h1 + i * h2），查询和写入都用管道一次发送k个GETBIT/SETBIT。
+ * 重建时写入临时key，完成后RENAME替换；临时key登记在redis中（key:building），同一时刻只有一个实例重建，
+ * 所有实例新增元素时都通过脚本同时写入登记的临时key，因此重建期间任何实例新增的元素都不会丢失。
+ * 重建完成前查询一律返回可能存在
+ */
+public class RedisBloomFilter {
+    //重建登记的有效期，重建的实例崩溃后其他实例可以在过期后重新重建
+    private static final long BUILD_TTL_SECONDS = 3600;
+    private static final DefaultRedisScript<Long> ADD_SCRIPT;
+    private static final DefaultRedisScript<Long> SWAP_SCRIPT;
+    private static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
+
+    static {
+        ADD_SCRIPT = new DefaultRedisScript<>();
+        ADD_SCRIPT.setLocation(new ClassPathResource("bloom_add.lua"));
+        ADD_SCRIPT.setResultType(Long.class);
+        SWAP_SCRIPT = new DefaultRedisScript<>();
+        SWAP_SCRIPT.setLocation(new ClassPathResource("bloom_swap.lua"));
+        SWAP_SCRIPT.setResultType(Long.class);
+        UNLOCK_SCRIPT = new DefaultRedisScript<>();
+        UNLOCK_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
+        UNLOCK_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final String key;
+    //登记正在重建的临时key
+    private final String buildingKey;
+    private final long numBits;
+    private final int numHashes;
+    //是否已经完成一次重建（自己或者其他实例），未完成前不能用来判断不存在
+    private volatile boolean ready;
+
+    /**
+     * @param expectedInsertions 预计元素数量
+     * @param fpp 误判率
+     */
+    public RedisBloomFilter(StringRedisTemplate stringRedisTemplate, String key, long expectedInsertions, double fpp) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.key = key;
+        this.buildingKey = key + ":building";
+        long n = Math.max(1, expectedInsertions);
+        //m = -n * ln(p) / (ln2)^2，k = m / n * ln2
+        this.numBits = Math.max(64, (long) (-n * Math.log(fpp) / (Math.log(2) * Math.log(2))));
+        this.numHashes = Math.max(1, (int) Math.round((double) numBits / n * Math.log(2)));
+    }
+
+    /**
+     * @return false：一定不存在；true：可能存在
+     */
+    public boolean mightContain(Object id) {
+        if (!ready) {
+            return true;
+        }
+        long[] offsets = offsets(id);
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            connection.exists(rawKey);
+            for (long offset : offsets) {
+                connection.getBit(rawKey, offset);
+            }
+            return null;
+        });
+        //位图丢失（例如redis数据被清空）时不能判断，按可能存在处理
+        if (!Boolean.TRUE.equals(results.get(0))) {
+            return true;
+        }
+        for (int i = 1; i < results.size(); i++) {
+            if (!Boolean.TRUE.equals(results.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 写入正式key，有实例正在重建时同时写入登记的临时key
+     */
+    public void add(Object id) {
+        long[] offsets = offsets(id);
+        Object[] args = new String[offsets.length];
+        for (int i = 0; i < offsets.length; i++) {
+            args[i] = String.valueOf(offsets[i]);
+        }
+        stringRedisTemplate.execute(ADD_SCRIPT, Arrays.asList(key, buildingKey), args);
+    }
+
+    /**
+     * 重建过滤器：按id分页读取全部元素。已经有其他实例在重建时不重复重建，等待它完成
+     * @param nextPage 传入上一页最后一个id（第一页为0），返回按id升序的下一页，返回空列表时结束
+     */
+    public void rebuild(LongFunction<List<Long>> nextPage) throws InterruptedException {
+        String tempKey = key + ":tmp:" + UUID.randomUUID().toString(true);
+        //1.登记临时key，登记之后所有实例新增的元素都会同时写入临时key
+        if (!Boolean.TRUE.equals(stringRedisTemplate.opsForValue()
+                .setIfAbsent(buildingKey, tempKey, BUILD_TTL_SECONDS, TimeUnit.SECONDS))) {
+            //其他实例正在重建，等待完成
+            while (Boolean.TRUE.equals(stringRedisTemplate.hasKey(buildingKey))) {
+                Thread.sleep(1000);
+            }
+            ready = true;
+            return;
+        }
+        boolean swapped = false;
+        try {
+            //2.分页写入临时key
+            long lastId = 0;
+            List<Long> ids;
+            while (!(ids = nextPage.apply(lastId)).isEmpty()) {
+                byte[] rawKey = tempKey.getBytes(StandardCharsets.UTF_8);
+                List<Long> page = ids;
+                stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    for (Long id : page) {
+                        for (long offset : offsets(id)) {
+                            connection.setBit(rawKey, offset, true);
+                        }
+                    }
+                    return null;
+                });
+                lastId = ids.get(ids.size() - 1);
+            }
+            //3.原子地替换正式key并取消登记
+            Long result = stringRedisTemplate.execute(SWAP_SCRIPT, Arrays.asList(key, buildingKey), tempKey);
+            swapped = result != null && result == 1;
+            //登记被接管时本次结果作废，等下一次重建成功前继续按可能存在处理
+            ready = swapped;
+        } finally {
+            if (!swapped) {
+                //重建失败或登记已被接管，清理临时key，只取消自己的登记
+                stringRedisTemplate.delete(tempKey);
+                stringRedisTemplate.execute(UNLOCK_SCRIPT, Collections.singletonList(buildingKey), tempKey);
+            }
+        }
+    }
+
+    private long[] offsets(Object id) {
+        //FNV-1a得到64位哈希，再用两个不同的混合函数得到h1、h2
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : String.valueOf(id).getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b;
+            hash *= 0x100000001b3L;
+        }
+        long h1 = mix(hash);
+        long h2 = mix(hash ^ 0x9E3779B97F4A7C15L) | 1;
+        long[] offsets = new long[numHashes];
+        for (int i = 0; i < numHashes; i++) {
+            offsets[i] = ((h1 + i * h2) & Long.MAX_VALUE) % numBits;
+        }
+        return offsets;
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
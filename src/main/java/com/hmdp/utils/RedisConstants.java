@@ -14,14 +14,63 @@ public class RedisConstants {
     public static final String CACHE_SHOP_TYPE_KEY = "cache:shop:type:list";
 
     public static final String CACHE_SHOP_KEY = "cache:shop:";
+    //用户公开信息（UserDTO）缓存
+    public static final String CACHE_USER_KEY = "cache:user:";
+    public static final Long CACHE_USER_TTL = 30L;
+    //探店笔记缓存，点赞数变化时删除
+    public static final String CACHE_BLOG_KEY = "cache:blog:";
+    public static final Long CACHE_BLOG_TTL = 30L;
 
+    //queryWithEarlyRefresh的缓存（带逻辑过期时间和重建耗时的RedisData）使用独立的命名空间 xfetch:{缓存key}，
+    //与queryWithPassThrough/批量查询写入的普通json不共用key
+    public static final String CACHE_XFETCH_KEY = "xfetch:";
+
+    //缓存失效通知频道，消息为被删除的key，各实例收到后清除本地缓存
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    //店铺id布隆过滤器（位图）
+    public static final String BLOOM_SHOP_KEY = "bloom:shop";
+    //跨实例缓存重建租约（lock:cache:{缓存key}）及重建完成通知频道
+    public static final String LOCK_CACHE_KEY = "lock:cache:";
+    public static final String CACHE_LOADED_CHANNEL = "cache:loaded";
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
 
+    //库存、下单用户（set）按分片拆分，完整key由SeckillKeys.shardKey生成：seckill:stock:{voucherId:shard}
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    //限购模式下每个用户已购数量（hash）
+    public static final String SECKILL_QUOTA_KEY = "seckill:quota:";
+    //秒杀限流（GCRA），seckill:rate:{voucherId}，按用户为seckill:rate:{voucherId}:{userId}
+    public static final String SECKILL_RATE_KEY = "seckill:rate:";
+    //超时未支付订单延迟队列（zset），member：订单id，score：支付截止时间
+    public static final String SECKILL_ORDER_TIMEOUT_KEY = "seckill:order:timeout";
+    //秒杀券元数据（hash），shards：库存分片数，begin/end：秒杀时间，limit：每人限购数量
+    public static final String SECKILL_VOUCHER_KEY = "seckill:voucher:";
+    //秒杀券售罄通知频道
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:soldout";
+    //秒杀订单消息队列，按优惠券id分区：stream.orders.{voucherId % partitions}
+    public static final String SECKILL_ORDER_STREAM_KEY = "stream.orders.";
+    //超过最大投递次数的订单消息（死信队列）
+    public static final String SECKILL_ORDER_DLQ_KEY = "stream.orders.dlq";
+    //订单积压数量：秒杀脚本写入队列时+1，消费者ack时扣减
+    public static final String SECKILL_BACKLOG_KEY = "seckill:backlog";
+    //排队：排队号计数器、已放行的最大排队号、用户的排队号（hash）、开启排队的秒杀券集合、放行锁
+    public static final String SECKILL_ROOM_TICKET_KEY = "seckill:room:ticket:";
+    public static final String SECKILL_ROOM_ADMITTED_KEY = "seckill:room:admitted:";
+    public static final String SECKILL_ROOM_USER_KEY = "seckill:room:user:";
+    public static final String SECKILL_ROOM_ACTIVE_KEY = "seckill:room:active";
+    public static final String SECKILL_ROOM_LOCK_KEY = "lock:seckill:room:";
+    //订单处理结果（hash），status：success/failed，reason：失败原因，userId：下单用户
+    public static final String SECKILL_RESULT_KEY = "seckill:result:";
+    //订单处理结果通知频道，消息为逗号分隔的订单id
+    public static final String SECKILL_RESULT_CHANNEL = "seckill:result";
+    //对账进度（hash），phase：当前阶段，shard/cursor：扫描位置，lastUserId：数据库分页位置，以及本轮发现的差异数
+    public static final String SECKILL_RECONCILE_KEY = "seckill:reconcile:";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FOLLOW_KEY = "follow:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
     public static final String USER_SIGN_KEY = "sign:";
+    //雪花id的workerId租约 id:worker:{workerId}
+    public static final String ID_WORKER_KEY = "id:worker:";
 }
@@ -8,4 +8,6 @@ import java.time.LocalDateTime;
 public class RedisData {
     private LocalDateTime expireTime;
     private Object data;
+    //重建一次缓存的耗时（毫秒），用于提前刷新（XFetch）
+    private Long delta;
 }
@@ -1,42 +1,331 @@
 package com.hmdp.utils;
 
+import cn.hutool.core.lang.UUID;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Component;
 
-import java.text.DateFormat;
-import java.time.LocalDate;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+import static com.hmdp.utils.RedisConstants.ID_WORKER_KEY;
+
+@Slf4j
 @Component
 public class RedisIdWorker {
     private StringRedisTemplate stringRedisTemplate;
 
     private static final long BEGIN_TIMESTAMP = 1735689600;
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+    //号段预取线程
+    private static final ExecutorService SEGMENT_LOADER = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "id-segment-loader");
+        thread.setDaemon(true);
+        return thread;
+    });
+    //workerId租约续期线程
+    private static final ScheduledExecutorService LEASE_RENEWER = Executors.newSingleThreadScheduledExecutor();
+
+    //雪花模式：低32位 = workerId(10位) << 22 | 秒内序列号(22位)，高位时间戳与redis模式相同
+    private static final int WORKER_ID_BITS = 10;
+    private static final int SEQUENCE_BITS = 22;
+    private static final long MAX_WORKER_ID = (1L << WORKER_ID_BITS) - 1;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+    //保留给redis回退模式的workerId，不参与租约，保证回退生成的id与雪花id不在同一个id空间
+    private static final long FALLBACK_WORKER_ID = MAX_WORKER_ID;
+    //可容忍的时钟回拨秒数，回拨不超过该值时沿用上一秒的时间戳
+    private static final long MAX_BACKWARD_SECONDS = 2;
+    private static final long LEASE_TTL_SECONDS = 300;
+    private static final long LEASE_RENEW_SECONDS = 30;
+    private static final DefaultRedisScript<Long> LEASE_SCRIPT;
+    private static final DefaultRedisScript<Long> RELEASE_SCRIPT;
+
+    static {
+        LEASE_SCRIPT = new DefaultRedisScript<>();
+        LEASE_SCRIPT.setLocation(new ClassPathResource("lease.lua"));
+        LEASE_SCRIPT.setResultType(Long.class);
+        RELEASE_SCRIPT = new DefaultRedisScript<>();
+        RELEASE_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
+        RELEASE_SCRIPT.setResultType(Long.class);
+    }
+
+    /**
+     * 号段步长：每次INCRBY预取的序列号数量，小于等于1时每个id都INCR一次redis
+     */
+    @Value("${id-worker.segment-step:1}")
+    private long segmentStep;
+
+    /**
+     * 使用雪花模式的业务前缀，这些前缀的id完全在JVM内生成，不访问redis
+     */
+    @Value("${id-worker.snowflake-prefixes:}")
+    private String[] snowflakePrefixes;
+    private Set<String> snowflakePrefixSet = Collections.emptySet();
+    //实例标识，用于workerId租约
+    private final String instanceId = UUID.randomUUID().toString(true);
+    //租约到的workerId，-1代表没有租约
+    private volatile long workerId = -1;
+    //租约的本地有效期：最后一次续约成功时间 + TTL - 续约间隔（留出余量），超过后不再使用该workerId
+    private volatile long leaseValidUntil;
+    private long lastSecond = -1;
+    private long sequence;
+
+    //每个业务前缀一个双缓冲号段
+    private final Map<String, SegmentBuffer> buffers = new ConcurrentHashMap<>();
+    //当天的日期字符串，跨天才重新格式化
+    private volatile Day day = Day.of(LocalDateTime.now());
+
     public RedisIdWorker(StringRedisTemplate stringRedisTemplate) {
         this.stringRedisTemplate = stringRedisTemplate;
     }
 
+    @PostConstruct
+    private void init() {
+        snowflakePrefixSet = new HashSet<>(Arrays.asList(snowflakePrefixes));
+        if (snowflakePrefixSet.isEmpty()) {
+            return;
+        }
+        //启动时租约workerId，之后定时续约（续约失败或租约丢失时重新租约）
+        LEASE_RENEWER.scheduleWithFixedDelay(this::renewLease, 0, LEASE_RENEW_SECONDS, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        LEASE_RENEWER.shutdownNow();
+        SEGMENT_LOADER.shutdownNow();
+        if (workerId >= 0) {
+            stringRedisTemplate.execute(RELEASE_SCRIPT, Collections.singletonList(ID_WORKER_KEY + workerId), instanceId);
+        }
+    }
+
     /**
      * 全局id生成器
      */
     public long nextId(String keyPrefix){
         //1.生成时间戳
         //1.1当前时间戳
-        LocalDateTime now = LocalDateTime.now();
-        long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
+        Day today = today();
+        long nowSecond = System.currentTimeMillis() / 1000 + today.offsetSeconds;
         //1.2时间戳差值
         long timestamp = nowSecond - BEGIN_TIMESTAMP;
+        if (snowflakePrefixSet.contains(keyPrefix)) {
+            if (workerId >= 0 && System.currentTimeMillis() < leaseValidUntil) {
+                return nextSnowflakeId(nowSecond);
+            }
+            log.warn("没有有效的workerId租约，使用redis生成id，keyPrefix: {}", keyPrefix);
+            //回退模式：时间戳 << 32 | 保留workerId << 22 | 当天序列号的低22位（同一秒内不会分配出相差2^22的序列号）
+            long count = segmentStep > 1 ? nextCountFromSegment(keyPrefix, today.date) : increment(keyPrefix, today.date, 1);
+            return timestamp << 32 | FALLBACK_WORKER_ID << SEQUENCE_BITS | (count & SEQUENCE_MASK);
+        }
 
         //2.生成序列号
         //2.1获取当前日期，精确到天
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
+        String date = today.date;
         //2.2自增长
-        Long count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
+        long count = segmentStep > 1 ? nextCountFromSegment(keyPrefix, date) : increment(keyPrefix, date, 1);
 
         //3.拼接并返回
         return timestamp << 32 | count;
     }
+
+    /**
+     * 雪花模式：时间戳 << 32 | workerId << 22 | 序列号，同一秒内序列号用完则等待下一秒
+     */
+    private synchronized long nextSnowflakeId(long nowSecond) {
+        if (nowSecond < lastSecond) {
+            //时钟回拨
+            if (lastSecond - nowSecond > MAX_BACKWARD_SECONDS) {
+                throw new IllegalStateException("时钟回拨" + (lastSecond - nowSecond) + "秒，拒绝生成id");
+            }
+            nowSecond = lastSecond;
+        }
+        if (nowSecond == lastSecond) {
+            sequence = (sequence + 1) & SEQUENCE_MASK;
+            if (sequence == 0) {
+                nowSecond = waitNextSecond(lastSecond);
+            }
+        } else {
+            sequence = 0;
+        }
+        lastSecond = nowSecond;
+        return (nowSecond - BEGIN_TIMESTAMP) << 32 | workerId << SEQUENCE_BITS | sequence;
+    }
+
+    private long waitNextSecond(long lastSecond) {
+        long nowSecond;
+        do {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("等待下一秒时被中断", e);
+            }
+            nowSecond = System.currentTimeMillis() / 1000 + day.offsetSeconds;
+        } while (nowSecond <= lastSecond);
+        return nowSecond;
+    }
+
+    /**
+     * 续约workerId；没有租约或者租约已丢失时，从随机位置开始尝试 SET id:worker:{n} instanceId NX EX ttl（不包括保留的回退workerId）
+     */
+    private void renewLease() {
+        try {
+            long id = workerId;
+            if (id >= 0) {
+                Long renewed = stringRedisTemplate.execute(LEASE_SCRIPT,
+                        Collections.singletonList(ID_WORKER_KEY + id), instanceId, String.valueOf(LEASE_TTL_SECONDS));
+                if (renewed != null && renewed == 1) {
+                    leaseValidUntil = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(LEASE_TTL_SECONDS - LEASE_RENEW_SECONDS);
+                    return;
+                }
+                log.warn("workerId {} 的租约已丢失，重新租约", id);
+                workerId = -1;
+            }
+            long start = ThreadLocalRandom.current().nextLong(FALLBACK_WORKER_ID);
+            for (long i = 0; i < FALLBACK_WORKER_ID; i++) {
+                long candidate = (start + i) % FALLBACK_WORKER_ID;
+                Boolean success = stringRedisTemplate.opsForValue()
+                        .setIfAbsent(ID_WORKER_KEY + candidate, instanceId, LEASE_TTL_SECONDS, TimeUnit.SECONDS);
+                if (Boolean.TRUE.equals(success)) {
+                    leaseValidUntil = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(LEASE_TTL_SECONDS - LEASE_RENEW_SECONDS);
+                    workerId = candidate;
+                    log.info("租约workerId成功: {}", candidate);
+                    return;
+                }
+            }
+            log.error("没有可用的workerId");
+        } catch (Exception e) {
+            //redis不可用时继续使用已有的workerId，直到本地租约有效期结束
+            log.error("续约workerId失败", e);
+        }
+    }
+
+    private long increment(String keyPrefix, String date, long delta) {
+        Long count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date, delta);
+        if (count == null) {
+            throw new IllegalStateException("生成序列号失败，keyPrefix: " + keyPrefix);
+        }
+        return count;
+    }
+
+    /**
+     * 号段模式：从本地号段中分配序列号，用到80%时异步预取下一个号段，用完时切换
+     */
+    private long nextCountFromSegment(String keyPrefix, String date) {
+        SegmentBuffer buffer = buffers.computeIfAbsent(keyPrefix, k -> new SegmentBuffer());
+        while (true) {
+            Segment segment = buffer.current;
+            if (segment != null && segment.date.equals(date)) {
+                long count = segment.cursor.getAndIncrement();
+                if (count <= segment.max) {
+                    if (count == segment.prefetchAt) {
+                        prefetch(buffer, keyPrefix, date);
+                    }
+                    return count;
+                }
+            }
+            //号段用完或者跨天，切换到预取的号段，没有则同步加载
+            synchronized (buffer) {
+                if (buffer.current == segment) {
+                    Segment next = buffer.next;
+                    buffer.next = null;
+                    buffer.current = next != null && next.date.equals(date) ? next : loadSegment(keyPrefix, date);
+                }
+            }
+        }
+    }
+
+    private void prefetch(SegmentBuffer buffer, String keyPrefix, String date) {
+        if (buffer.next != null || !buffer.loading.compareAndSet(false, true)) {
+            return;
+        }
+        SEGMENT_LOADER.execute(() -> {
+            try {
+                buffer.next = loadSegment(keyPrefix, date);
+            } catch (Exception e) {
+                log.error("预取号段失败，keyPrefix: {}", keyPrefix, e);
+            } finally {
+                buffer.loading.set(false);
+            }
+        });
+    }
+
+    /**
+     * INCRBY step，得到号段 [end - step + 1, end]
+     */
+    private Segment loadSegment(String keyPrefix, String date) {
+        long end = increment(keyPrefix, date, segmentStep);
+        return new Segment(date, end - segmentStep + 1, end, end - segmentStep / 5);
+    }
+
+    private Day today() {
+        Day today = day;
+        long nowSecond = System.currentTimeMillis() / 1000 + today.offsetSeconds;
+        if (nowSecond >= today.endSecond) {
+            today = Day.of(LocalDateTime.now());
+            day = today;
+        }
+        return today;
+    }
+
+    private static class Segment {
+        final String date;
+        final AtomicLong cursor;
+        final long max;
+        final long prefetchAt;
+
+        Segment(String date, long start, long max, long prefetchAt) {
+            this.date = date;
+            this.cursor = new AtomicLong(start);
+            this.max = max;
+            this.prefetchAt = prefetchAt;
+        }
+    }
+
+    private static class SegmentBuffer {
+        volatile Segment current;
+        volatile Segment next;
+        final AtomicBoolean loading = new AtomicBoolean();
+    }
+
+    /**
+     * 日期缓存：日期字符串、当天结束的秒数、本地时间相对UTC的偏移（与LocalDateTime.now().toEpochSecond(UTC)保持一致）
+     */
+    private static class Day {
+        final String date;
+        final long endSecond;
+        final long offsetSeconds;
+
+        Day(String date, long endSecond, long offsetSeconds) {
+            this.date = date;
+            this.endSecond = endSecond;
+            this.offsetSeconds = offsetSeconds;
+        }
+
+        static Day of(LocalDateTime now) {
+            long endSecond = now.toLocalDate().plusDays(1).atStartOfDay().toEpochSecond(ZoneOffset.UTC);
+            //时区偏移按分钟取整，消除两次取时间之间的误差
+            long offsetSeconds = Math.round((now.toEpochSecond(ZoneOffset.UTC) - System.currentTimeMillis() / 1000) / 60.0) * 60;
+            return new Day(now.format(DATE_FORMATTER), endSecond, offsetSeconds);
+        }
+    }
 }
@@ -0,0 +1,25 @@
+package com.hmdp.utils;
+
+/**
+ * 秒杀库存分片的key：同一分片的库存、下单用户集合、限购计数使用同一个hash tag，
+ * 分片数为1时为 seckill:stock:{voucherId}，否则为 seckill:stock:{voucherId:shard}，在redis集群中同一分片的key落在同一个slot
+ */
+public class SeckillKeys {
+    /**
+     * @param prefix SECKILL_STOCK_KEY / SECKILL_ORDER_KEY / SECKILL_QUOTA_KEY
+     * @param voucherId 优惠券id
+     * @param shards 库存分片数
+     * @param shard 分片序号
+     * @return 分片key
+     */
+    public static String shardKey(String prefix, Object voucherId, int shards, int shard) {
+        return shards > 1 ? prefix + "{" + voucherId + ":" + shard + "}" : prefix + "{" + voucherId + "}";
+    }
+
+    /**
+     * 用户所在的分片：下单用户集合/限购计数只保存在该分片
+     */
+    public static int homeShard(long userId, int shards) {
+        return shards > 1 ? (int) (userId % shards) : 0;
+    }
+}
@@ -0,0 +1,87 @@
+package com.hmdp.utils;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_VOUCHER_KEY;
+
+/**
+ * 秒杀本地限流：每个秒杀券在每个JVM内一个令牌桶，速率取秒杀券元数据中的rate（每秒请求数）除以实例数，
+ * 超出速率的请求在访问redis执行秒杀脚本之前直接拒绝。本地限流只是每个节点的上限，负载不均时单个节点可能先被限流，
+ * 全局的按券/按用户限流在seckill.lua中完成
+ */
+@Component
+public class SeckillRateLimiter {
+    //不限流的秒杀券
+    private static final TokenBucket UNLIMITED = new TokenBucket(0, 0);
+    //元数据还没有写入redis时暂不限流，1秒后重新读取
+    private static final long UNKNOWN_TTL_MILLIS = 1000;
+
+    private final Map<Long, Entry> buckets = new ConcurrentHashMap<>();
+
+    //部署的实例数，每个实例的令牌桶速率为全局速率的1/instances
+    @Value("${seckill.rate-limit.instances:1}")
+    private int instances;
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    public SeckillRateLimiter(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    public boolean tryAcquire(Long voucherId) {
+        Entry entry = buckets.get(voucherId);
+        if (entry == null || entry.isExpired()) {
+            entry = buckets.compute(voucherId, (id, old) -> old == null || old.isExpired() ? createBucket(id) : old);
+        }
+        return entry.bucket == UNLIMITED || entry.bucket.tryAcquire();
+    }
+
+    /**
+     * 秒杀开始前预先创建令牌桶，开始时第一批请求不再读取redis
+     */
+    public void warm(Long voucherId) {
+        buckets.computeIfAbsent(voucherId, this::createBucket);
+    }
+
+    /**
+     * 秒杀券下架后移除令牌桶
+     */
+    public void remove(Long voucherId) {
+        buckets.remove(voucherId);
+    }
+
+    private Entry createBucket(Long voucherId) {
+        //第一次请求时从redis读取一次限流速率
+        Object rate = stringRedisTemplate.opsForHash().get(SECKILL_VOUCHER_KEY + voucherId, "rate");
+        if (rate == null) {
+            //元数据还没有写入redis，短时间内不再读取，避免每个请求都访问一次redis
+            return new Entry(UNLIMITED, System.currentTimeMillis() + UNKNOWN_TTL_MILLIS);
+        }
+        int permitsPerSecond = Integer.parseInt(rate.toString());
+        if (permitsPerSecond <= 0) {
+            return new Entry(UNLIMITED, Long.MAX_VALUE);
+        }
+        //按实例数均分全局速率，至少1个令牌每秒；允许1秒的突发
+        double localPermits = Math.max(1.0, (double) permitsPerSecond / Math.max(1, instances));
+        return new Entry(new TokenBucket(localPermits, localPermits), Long.MAX_VALUE);
+    }
+
+    private static class Entry {
+        private final TokenBucket bucket;
+        private final long expireAt;
+
+        Entry(TokenBucket bucket, long expireAt) {
+            this.bucket = bucket;
+            this.expireAt = expireAt;
+        }
+
+        boolean isExpired() {
+            return expireAt < System.currentTimeMillis();
+        }
+    }
+}
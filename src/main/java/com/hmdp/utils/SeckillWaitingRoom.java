@@ -0,0 +1,172 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀排队：用户先领取递增的排队号，后台每秒按批放行（推进已放行的最大排队号），
+ * 轮到的用户才能执行秒杀脚本，其他用户轮询排队状态，排队状态查询只读redis，不执行秒杀脚本。
+ * 每批放行数量受剩余库存和订单积压限制，多个实例通过放行锁保证每秒只放行一次
+ */
+@Slf4j
+@Component
+public class SeckillWaitingRoom {
+    private static final DefaultRedisScript<Long> TICKET_SCRIPT;
+
+    static {
+        TICKET_SCRIPT = new DefaultRedisScript<>();
+        TICKET_SCRIPT.setLocation(new ClassPathResource("room_ticket.lua"));
+        TICKET_SCRIPT.setResultType(Long.class);
+    }
+
+    private static final ScheduledExecutorService ADMITTER = Executors.newSingleThreadScheduledExecutor();
+    //放行锁的有效期，略小于放行间隔
+    private static final long ADMIT_LOCK_MILLIS = 900;
+
+    @Value("${seckill.room.admit-batch:500}")
+    private long admitBatch;
+    @Value("${seckill.order.backlog-watermark:0}")
+    private long backlogWatermark;
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    public SeckillWaitingRoom(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    @PostConstruct
+    private void init() {
+        ADMITTER.scheduleWithFixedDelay(this::admitAll, 1, 1, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        ADMITTER.shutdownNow();
+    }
+
+    /**
+     * 领取排队号，重复领取返回同一个排队号
+     * @return 排队号；null：该秒杀券没有开启排队
+     */
+    public Long takeTicket(Long voucherId, Long userId) {
+        Long position = stringRedisTemplate.execute(TICKET_SCRIPT, Collections.emptyList(),
+                voucherId.toString(), userId.toString());
+        return position == null || position < 0 ? null : position;
+    }
+
+    /**
+     * 查询排队状态：排队号、已放行的最大排队号、前面还有多少人、是否已经轮到
+     */
+    public Map<String, Object> queryTicket(Long voucherId, Long userId) {
+        Object position = stringRedisTemplate.opsForHash().get(SECKILL_ROOM_USER_KEY + voucherId, userId.toString());
+        String admitted = stringRedisTemplate.opsForValue().get(SECKILL_ROOM_ADMITTED_KEY + voucherId);
+        long admittedPosition = admitted == null ? 0 : Long.parseLong(admitted);
+        Map<String, Object> status = new HashMap<>(4);
+        status.put("admitted", admittedPosition);
+        if (position == null) {
+            return status;
+        }
+        long ticket = Long.parseLong(position.toString());
+        status.put("position", ticket);
+        status.put("ahead", Math.max(0, ticket - admittedPosition));
+        status.put("ready", ticket <= admittedPosition);
+        return status;
+    }
+
+    private void admitAll() {
+        try {
+            Set<String> voucherIds = stringRedisTemplate.opsForSet().members(SECKILL_ROOM_ACTIVE_KEY);
+            if (voucherIds == null) {
+                return;
+            }
+            for (String voucherId : voucherIds) {
+                try {
+                    admit(voucherId);
+                } catch (Exception e) {
+                    log.error("排队放行异常，优惠券ID: {}", voucherId, e);
+                }
+            }
+        } catch (Exception e) {
+            log.error("排队放行异常", e);
+        }
+    }
+
+    private void admit(String voucherId) {
+        //1.获取放行锁，每个放行周期只有一个实例放行
+        Boolean locked = stringRedisTemplate.opsForValue()
+                .setIfAbsent(SECKILL_ROOM_LOCK_KEY + voucherId, "1", ADMIT_LOCK_MILLIS, TimeUnit.MILLISECONDS);
+        if (!Boolean.TRUE.equals(locked)) {
+            return;
+        }
+        //2.秒杀已经结束，不再放行
+        List<Object> meta = stringRedisTemplate.opsForHash()
+                .multiGet(SECKILL_VOUCHER_KEY + voucherId, Arrays.asList("end", "shards"));
+        long nowSecond = System.currentTimeMillis() / 1000;
+        if (meta.get(0) == null || Long.parseLong(meta.get(0).toString()) < nowSecond) {
+            stringRedisTemplate.opsForSet().remove(SECKILL_ROOM_ACTIVE_KEY, voucherId);
+            return;
+        }
+        long endSecond = Long.parseLong(meta.get(0).toString());
+        //3.所有排队的用户都已经放行
+        String tickets = stringRedisTemplate.opsForValue().get(SECKILL_ROOM_TICKET_KEY + voucherId);
+        String admitted = stringRedisTemplate.opsForValue().get(SECKILL_ROOM_ADMITTED_KEY + voucherId);
+        long ticketCount = tickets == null ? 0 : Long.parseLong(tickets);
+        long admittedPosition = admitted == null ? 0 : Long.parseLong(admitted);
+        if (admittedPosition >= ticketCount) {
+            return;
+        }
+        //4.已经没有库存，不再放行
+        int shards = meta.get(1) == null ? 1 : Integer.parseInt(meta.get(1).toString());
+        if (remainingStock(voucherId, shards) <= 0) {
+            return;
+        }
+        //5.按订单积压剩余的余量放行
+        long batch = admitBatch;
+        if (backlogWatermark > 0) {
+            String backlog = stringRedisTemplate.opsForValue().get(SECKILL_BACKLOG_KEY);
+            batch = Math.min(batch, backlogWatermark - (backlog == null ? 0 : Long.parseLong(backlog)));
+            if (batch <= 0) {
+                return;
+            }
+        }
+        //6.推进已放行的最大排队号，秒杀结束1小时后过期
+        long next = Math.min(ticketCount, admittedPosition + batch);
+        stringRedisTemplate.opsForValue().set(SECKILL_ROOM_ADMITTED_KEY + voucherId, String.valueOf(next),
+                Duration.ofSeconds(Math.max(1, endSecond + 3600 - nowSecond)));
+    }
+
+    private long remainingStock(String voucherId, int shards) {
+        List<String> keys = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) {
+            keys.add(SeckillKeys.shardKey(SECKILL_STOCK_KEY, voucherId, shards, i));
+        }
+        List<String> values = stringRedisTemplate.opsForValue().multiGet(keys);
+        long stock = 0;
+        if (values != null) {
+            for (String value : values) {
+                stock += value == null ? 0 : Long.parseLong(value);
+            }
+        }
+        return stock;
+    }
+}
@@ -0,0 +1,97 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+
+/**
+ * 本地售罄标记：秒杀券卖完后，后续请求在JVM内直接拒绝，不再访问redis。
+ * 标记通过redis发布订阅同步到其他实例，消息格式：+voucherId:版本 售罄，-voucherId:版本 恢复库存。
+ * 版本为时间戳（售罄取执行秒杀脚本前的时间，恢复取库存退回后的时间），比已处理的版本旧的消息直接丢弃，
+ * 避免迟到的售罄消息覆盖之后的库存恢复
+ */
+@Slf4j
+@Component
+public class SoldOutCache implements MessageListener {
+    private final Set<Long> soldOutVouchers = ConcurrentHashMap.newKeySet();
+    //每张秒杀券最后处理的标记版本
+    private final Map<Long, Long> versions = new ConcurrentHashMap<>();
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    public SoldOutCache(StringRedisTemplate stringRedisTemplate, RedisMessageListenerContainer container) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        container.addMessageListener(this, new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+    }
+
+    public boolean isSoldOut(Long voucherId) {
+        return soldOutVouchers.contains(voucherId);
+    }
+
+    /**
+     * 标记售罄并通知其他实例
+     * @param observedAt 观察到售罄的时间（执行秒杀脚本之前的时间）
+     */
+    public void markSoldOut(Long voucherId, long observedAt) {
+        if (apply(voucherId, true, observedAt)) {
+            stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, "+" + voucherId + ":" + observedAt);
+        }
+    }
+
+    /**
+     * 库存恢复（超时退库存、补货、重新加载等）时清除标记并通知其他实例，需要在库存写回redis之后调用
+     */
+    public void clear(Long voucherId) {
+        long now = System.currentTimeMillis();
+        apply(voucherId, false, now);
+        stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, "-" + voucherId + ":" + now);
+    }
+
+    /**
+     * 秒杀结束后移除本地标记（每个实例各自移除，不通知）
+     */
+    public void evict(Long voucherId) {
+        versions.remove(voucherId);
+        soldOutVouchers.remove(voucherId);
+    }
+
+    /**
+     * 按版本更新标记：售罄需要比已处理的版本新，恢复与已处理的版本相同时也生效（同一时刻以恢复为准）
+     * @return 标记是否发生了变化
+     */
+    private boolean apply(Long voucherId, boolean soldOut, long version) {
+        boolean[] changed = new boolean[1];
+        versions.compute(voucherId, (id, last) -> {
+            if (last != null && (soldOut ? version <= last : version < last)) {
+                return last;
+            }
+            changed[0] = soldOut ? soldOutVouchers.add(id) : soldOutVouchers.remove(id);
+            return version;
+        });
+        return changed[0];
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        try {
+            int separator = body.indexOf(':');
+            Long voucherId = Long.valueOf(body.substring(1, separator));
+            long version = Long.parseLong(body.substring(separator + 1));
+            apply(voucherId, body.charAt(0) == '+', version);
+        } catch (RuntimeException e) {
+            log.error("无法解析售罄消息: {}", body, e);
+        }
+    }
+}
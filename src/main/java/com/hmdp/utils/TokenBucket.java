@@ -0,0 +1,42 @@
+package com.hmdp.utils;
+
+/**
+ * 本地令牌桶：按固定速率补充令牌，桶满时最多允许capacity个请求的突发
+ */
+public class TokenBucket {
+    //每毫秒补充的令牌数
+    private final double tokensPerMillis;
+    private final double capacity;
+    private double tokens;
+    private long lastRefillMillis;
+
+    /**
+     * @param permitsPerSecond 每秒补充的令牌数
+     * @param capacity 桶容量（允许的突发请求数）
+     */
+    public TokenBucket(double permitsPerSecond, double capacity) {
+        this.tokensPerMillis = permitsPerSecond / 1000;
+        this.capacity = capacity;
+        this.tokens = capacity;
+        this.lastRefillMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * 尝试获取一个令牌
+     * @return true：获取成功；false：令牌不足，请求应当被拒绝
+     */
+    public synchronized boolean tryAcquire() {
+        //1.按距离上次补充的时间补充令牌
+        long now = System.currentTimeMillis();
+        if (now > lastRefillMillis) {
+            tokens = Math.min(capacity, tokens + (now - lastRefillMillis) * tokensPerMillis);
+            lastRefillMillis = now;
+        }
+        //2.扣减令牌
+        if (tokens < 1) {
+            return false;
+        }
+        tokens -= 1;
+        return true;
+    }
+}
@@ -0,0 +1,126 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 订单消息编解码：订单id、用户id、优惠券id、购买数量按36进制编码后用':'拼接，写入消息的单个字段o，
+ * 例如 o=3w5e11264sgsg:1z141z:2n9c:1。
+ * 组合秒杀的消息写入字段b，多个订单的编码用','拼接。
+ * 解码手写解析，不使用反射；兼容升级前按字段写入的消息（id、userId、voucherId、quantity）
+ */
+public class VoucherOrderCodec {
+    public static final String FIELD = "o";
+    public static final String BUNDLE_FIELD = "b";
+    private static final int RADIX = 36;
+    private static final char SEPARATOR = ':';
+    private static final char BUNDLE_SEPARATOR = ',';
+
+    private VoucherOrderCodec() {
+    }
+
+    public static String encode(long orderId, long userId, long voucherId, int quantity) {
+        return Long.toString(orderId, RADIX) + SEPARATOR + Long.toString(userId, RADIX) + SEPARATOR
+                + Long.toString(voucherId, RADIX) + SEPARATOR + Integer.toString(quantity, RADIX);
+    }
+
+    /**
+     * 编码组合订单，所有订单在一条消息中
+     */
+    public static String encodeBundle(List<VoucherOrder> orders) {
+        StringBuilder sb = new StringBuilder(orders.size() * 32);
+        for (VoucherOrder order : orders) {
+            if (sb.length() > 0) {
+                sb.append(BUNDLE_SEPARATOR);
+            }
+            sb.append(encode(order.getId(), order.getUserId(), order.getVoucherId(), order.getQuantity()));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 解码一条消息中的所有订单（普通消息一个订单，组合消息多个订单）
+     * @return 订单列表；消息格式不正确时返回空列表
+     */
+    public static List<VoucherOrder> decodeAll(Map<Object, Object> values) {
+        Object bundle = values.get(BUNDLE_FIELD);
+        if (bundle == null) {
+            VoucherOrder order = decode(values);
+            return order == null ? Collections.emptyList() : Collections.singletonList(order);
+        }
+        String packed = bundle.toString();
+        List<VoucherOrder> orders = new ArrayList<>();
+        int start = 0;
+        while (start <= packed.length()) {
+            int end = packed.indexOf(BUNDLE_SEPARATOR, start);
+            if (end < 0) {
+                end = packed.length();
+            }
+            VoucherOrder order;
+            try {
+                order = decode(packed.substring(start, end));
+            } catch (NumberFormatException e) {
+                order = null;
+            }
+            if (order == null) {
+                return Collections.emptyList();
+            }
+            orders.add(order);
+            start = end + 1;
+        }
+        return orders;
+    }
+
+    /**
+     * 解码订单消息
+     * @return 订单；消息格式不正确时返回null
+     */
+    public static VoucherOrder decode(Map<Object, Object> values) {
+        try {
+            Object packed = values.get(FIELD);
+            if (packed != null) {
+                return decode(packed.toString());
+            }
+            //升级前的消息
+            Object id = values.get("id");
+            Object userId = values.get("userId");
+            Object voucherId = values.get("voucherId");
+            if (id == null || userId == null || voucherId == null) {
+                return null;
+            }
+            Object quantity = values.get("quantity");
+            return newOrder(Long.parseLong(id.toString()), Long.parseLong(userId.toString()),
+                    Long.parseLong(voucherId.toString()), quantity == null ? 1 : Integer.parseInt(quantity.toString()));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static VoucherOrder decode(String packed) {
+        //1.按分隔符切出4段，不使用split，避免正则和数组开销
+        int first = packed.indexOf(SEPARATOR);
+        int second = packed.indexOf(SEPARATOR, first + 1);
+        int third = packed.indexOf(SEPARATOR, second + 1);
+        if (first < 0 || second < 0 || third < 0) {
+            return null;
+        }
+        //2.逐段按36进制解析
+        return newOrder(Long.parseLong(packed.substring(0, first), RADIX),
+                Long.parseLong(packed.substring(first + 1, second), RADIX),
+                Long.parseLong(packed.substring(second + 1, third), RADIX),
+                Integer.parseInt(packed.substring(third + 1), RADIX));
+    }
+
+    private static VoucherOrder newOrder(long orderId, long userId, long voucherId, int quantity) {
+        VoucherOrder order = new VoucherOrder();
+        order.setId(orderId);
+        order.setUserId(userId);
+        order.setVoucherId(voucherId);
+        order.setQuantity(quantity);
+        return order;
+    }
+}
@@ -0,0 +1,8 @@
+-- 消费者ack后扣减订单积压数量，不小于0（升级前已经在队列中的消息没有计入积压数量）
+-- KEYS[1]：积压数量key，ARGV[1]：本次ack的消息数
+local backlog = redis.call('decrby', KEYS[1], tonumber(ARGV[1]));
+if (backlog < 0) then
+    redis.call('set', KEYS[1], 0);
+    return 0;
+end
+return backlog;
@@ -0,0 +1,10 @@
+-- 布隆过滤器写入：KEYS[1]正式key，KEYS[2]登记key（值为正在重建的临时key），ARGV为位偏移
+-- 正在重建时同时写入临时key；与重建完成时的替换（bloom_swap.lua）都是原子的，新增的元素不会被替换覆盖
+local building = redis.call('get', KEYS[2]);
+for i = 1, #ARGV do
+    redis.call('setbit', KEYS[1], ARGV[i], 1);
+    if (building) then
+        redis.call('setbit', building, ARGV[i], 1);
+    end
+end
+return 0;
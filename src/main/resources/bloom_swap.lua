@@ -0,0 +1,15 @@
+-- 布隆过滤器重建完成：KEYS[1]正式key，KEYS[2]登记key，ARGV[1]本次重建的临时key
+-- 1.登记已经不是本次重建（过期后被其他实例接管），放弃本次结果
+if (redis.call('get', KEYS[2]) ~= ARGV[1]) then
+    redis.call('del', ARGV[1]);
+    return 0;
+end
+-- 2.用临时key替换正式key（没有任何元素时临时key不存在，删除正式key）
+if (redis.call('exists', ARGV[1]) == 1) then
+    redis.call('rename', ARGV[1], KEYS[1]);
+else
+    redis.call('del', KEYS[1]);
+end
+-- 3.取消登记
+redis.call('del', KEYS[2]);
+return 1;
@@ -0,0 +1,6 @@
+-- 续约：比较租约中的实例标识是否一致
+if (redis.call('get',KEYS[1]) == ARGV[1]) then
+    -- 一致，延长过期时间
+    return redis.call('expire',KEYS[1],ARGV[2])
+end
+return 0
@@ -0,0 +1,7 @@
+-- 对账：从游标位置扫描一批下单用户，返回 {下一个游标, 数据}
+-- KEYS[1]：下单用户集合（set）或限购计数（hash）
+-- ARGV[1]：游标，ARGV[2]：每批数量，ARGV[3]：set / hash
+if (ARGV[3] == 'hash') then
+    return redis.call('hscan', KEYS[1], ARGV[1], 'count', ARGV[2]);
+end
+return redis.call('sscan', KEYS[1], ARGV[1], 'count', ARGV[2]);
@@ -0,0 +1,29 @@
+-- 领取排队号：同一用户重复领取返回同一个排队号
+-- ARGV[1]：优惠券id，ARGV[2]：用户id
+-- 返回排队号；-1：该秒杀券没有开启排队
+local voucherId = ARGV[1];
+local userId = ARGV[2];
+local voucherKey = "seckill:voucher:" .. voucherId;
+local ticketKey = "seckill:room:ticket:" .. voucherId;
+local userKey = "seckill:room:user:" .. voucherId;
+
+-- 1.判断是否开启排队 hmget voucherKey room end
+local meta = redis.call('hmget', voucherKey, 'room', 'end');
+if (meta[1] ~= '1') then
+    return -1;
+end
+-- 2.已经领取过，直接返回
+local position = redis.call('hget', userKey, userId);
+if (position) then
+    return tonumber(position);
+end
+-- 3.发放新的排队号 incr ticketKey，并记录到用户
+position = redis.call('incr', ticketKey);
+redis.call('hset', userKey, userId, position);
+-- 4.秒杀结束1小时后清理排队数据
+if (position == 1 and meta[2]) then
+    local expireAt = tonumber(meta[2]) + 3600;
+    redis.call('expireat', ticketKey, expireAt);
+    redis.call('expireat', userKey, expireAt);
+end
+return position;
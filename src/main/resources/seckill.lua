@@ -11,28 +11,139 @@ local voucherId = ARGV[1];
 local userId = ARGV[2];
 -- 1.3.订单id
 local orderId = ARGV[3];
+-- 1.4.订单消息队列分区数
+local partitions = tonumber(ARGV[4]);
+-- 1.5.当前时间（秒）
+local now = tonumber(ARGV[5]);
+-- 1.6.购买数量
+local quantity = tonumber(ARGV[6]) or 1;
+-- 1.7.支付截止时间（毫秒）
+local payDeadline = ARGV[7];
+-- 1.8.订单积压水位线，0表示不限制
+local backlogWatermark = tonumber(ARGV[8]) or 0;
+-- 1.9.当前时间（毫秒），用于限流
+local nowMillis = tonumber(ARGV[9]) or now * 1000;
+-- 1.10.编码后的订单消息（订单id:用户id:优惠券id:数量，36进制）
+local payload = ARGV[10];
+-- 1.11.是否已经从相邻分片借过库存，'1'时用户所在分片库存不足直接返回1/5
+local borrowed = ARGV[11] == '1';
 
 -- 2.数据key
--- 2.1.库存key
-local stockKey = "seckill:stock:" .. voucherId;
--- 2.2.订单key
-local orderKey = "seckill:order:" .. voucherId;
+-- 2.1.用户所在分片的库存key、下单用户key、限购计数key（同一个hash tag，由调用方按userId % shards计算）
+local stockKey = KEYS[1];
+local orderKey = KEYS[2];
+local quotaKey = KEYS[3];
+-- 2.4.优惠券元数据key
+local voucherKey = "seckill:voucher:" .. voucherId;
+-- 2.5.消息队列key，按优惠券id取模选择分区，同一优惠券的订单总是进入同一个分区
+local streamKey = "stream.orders." .. (tonumber(voucherId) % partitions);
+-- 2.6.超时未支付订单延迟队列key（zset，score为支付截止时间）
+local timeoutKey = "seckill:order:timeout";
+-- 2.7.订单积压数量key（已写入队列但还没有ack的订单数）
+local backlogKey = "seckill:backlog";
+-- 2.8.限流key，按券 / 按券+用户，值为GCRA的理论到达时间（毫秒）
+local rateKey = "seckill:rate:" .. voucherId;
+local userRateKey = rateKey .. ":" .. userId;
+-- 2.9.排队：用户的排队号（hash）、已放行的最大排队号
+local roomUserKey = "seckill:room:user:" .. voucherId;
+local roomAdmittedKey = "seckill:room:admitted:" .. voucherId;
+
+-- GCRA限流：每个请求把理论到达时间(tat)推后interval，tat超出当前时间burst毫秒以上时拒绝
+-- limit个请求/period毫秒，允许一个period内的突发
+local function rateLimited(key, limit, period)
+    if (limit <= 0) then
+        return false;
+    end
+    local interval = period / limit;
+    local tat = math.max(tonumber(redis.call('get', key)) or nowMillis, nowMillis);
+    local newTat = tat + interval;
+    if (newTat - nowMillis > period) then
+        return true;
+    end
+    redis.call('set', key, newTat, 'px', math.ceil(newTat - nowMillis));
+    return false;
+end
 
 -- 3.脚本业务
--- 3.1.判断库存是否充足get stockKey
-if (tonumber(redis.call('get',stockKey))<=0) then
-    -- 3.2库存不足，返回1
+-- 3.0.判断秒杀时间 hmget voucherKey shards begin end limit
+local meta = redis.call('hmget', voucherKey, 'shards', 'begin', 'end', 'limit', 'rate', 'userRate', 'room');
+if (not meta[1]) then
+    -- 秒杀券还没有加载到redis（不存在或者还没到预加载时间），返回10，不能当作售罄
+    return 10;
+end
+if (meta[2] and now < tonumber(meta[2])) then
+    -- 秒杀尚未开始，返回3
+    return 3;
+end
+if (meta[3] and now > tonumber(meta[3])) then
+    -- 秒杀已经结束，返回4
+    return 4;
+end
+-- 3.0.1.开启排队时，判断用户是否已经轮到
+if (meta[7] == '1') then
+    local position = tonumber(redis.call('hget', roomUserKey, userId));
+    if (not position or position > (tonumber(redis.call('get', roomAdmittedKey)) or 0)) then
+        -- 没有排队号或者还没有轮到，返回9
+        return 9;
+    end
+end
+-- 3.1.判断订单积压 get backlogKey
+if (backlogWatermark > 0 and (tonumber(redis.call('get', backlogKey)) or 0) >= backlogWatermark) then
+    -- 消费者处理不过来，返回7
+    return 7;
+end
+-- 3.2.全局限流：每秒rate个请求（按券）、每分钟userRate个请求（按用户）
+if (rateLimited(rateKey, tonumber(meta[5]) or 0, 1000)
+        or rateLimited(userRateKey, tonumber(meta[6]) or 0, 60000)) then
+    -- 请求过于频繁，返回8
+    return 8;
+end
+-- 3.3.判断库存是否充足get stockKey
+local shards = tonumber(meta[1]) or 1;
+local limit = tonumber(meta[4]) or 1;
+-- 分片库存：脚本只访问用户所在分片，该分片库存不够时返回11，由调用方从相邻分片借库存后再执行一次
+local stock = tonumber(redis.call('get', stockKey)) or 0;
+if (stock < quantity and shards > 1 and not borrowed) then
+    return 11;
+end
+if (stock <= 0) then
+    -- 3.2库存为0，返回1
     return 1;
 end
--- 3.3.判断用户是否重复下单
-if (redis.call('sismember',orderKey,userId)==1) then
-    -- 3.4用户重复下单，返回2
-    return 2;
-end
--- 3.5.扣减库存，sadd orderKey userId
-redis.call('incrby',stockKey,-1);
--- 3.6.下单（保存用户）sadd orderKey userId
-redis.call('sadd',orderKey,userId);
--- 3.7.发送消息到队列中， XADD stream.orders * k1 v1 k2 v2
-redis.call('xadd','stream.orders','*','userId',userId,'voucherId',voucherId,'id',orderId);
-return 0;
\ No newline at end of file
+if (stock < quantity) then
+    -- 3.2剩余库存少于购买数量，返回5
+    return 5;
+end
+-- 3.3.判断用户是否重复下单/超出限购
+if (limit <= 1) then
+    -- 一人一单
+    if (quantity > 1) then
+        return 6;
+    end
+    if (redis.call('sismember',orderKey,userId)==1) then
+        -- 3.4用户重复下单，返回2
+        return 2;
+    end
+else
+    -- 限购模式：hash记录每个用户已购数量
+    local bought = tonumber(redis.call('hget', quotaKey, userId)) or 0;
+    if (bought + quantity > limit) then
+        -- 3.4超出限购数量，返回6
+        return 6;
+    end
+end
+-- 3.5.扣减库存 incrby stockKey -quantity
+redis.call('incrby', stockKey, -quantity);
+-- 3.6.下单（保存用户）sadd orderKey userId / hincrby quotaKey userId quantity
+if (limit <= 1) then
+    redis.call('sadd',orderKey,userId);
+else
+    redis.call('hincrby', quotaKey, userId, quantity);
+end
+-- 3.7.发送消息到队列中， XADD stream.orders.p * o payload
+redis.call('xadd',streamKey,'*','o',payload);
+-- 3.8.加入超时未支付延迟队列 zadd timeoutKey payDeadline orderId
+redis.call('zadd',timeoutKey,payDeadline,orderId);
+-- 3.9.订单积压数量+1，消费者ack后扣减
+redis.call('incr',backlogKey);
+return 0;
@@ -0,0 +1,11 @@
+-- 从相邻分片借库存：用户所在分片库存不足时，调用方依次对相邻分片执行，借到的库存再加到用户所在分片
+-- 只访问一个key，在redis集群中可以路由到该分片所在的节点
+-- KEYS[1]：相邻分片的库存key，ARGV[1]：需要的数量
+-- 返回实际借到的数量
+local stock = tonumber(redis.call('get', KEYS[1])) or 0;
+local take = math.min(stock, tonumber(ARGV[1]));
+if (take <= 0) then
+    return 0;
+end
+redis.call('decrby', KEYS[1], take);
+return take;
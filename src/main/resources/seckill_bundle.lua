@@ -0,0 +1,126 @@
+-- 组合秒杀：一次购买多张秒杀券（每张1份），全部校验通过后才扣减，任何一张失败都不做任何修改
+-- 返回 {结果, 失败的优惠券序号}，结果与seckill.lua相同：0成功 1库存不足 2重复下单 3尚未开始 4已经结束
+-- 6超出限购 7系统繁忙 8请求过于频繁 9还没有轮到 10秒杀券没有加载到redis 11用户所在分片库存不足，需要先从相邻分片借库存
+-- KEYS：每3个一组，每张优惠券用户所在分片的库存key、下单用户key、限购计数key
+
+-- 1.参数列表
+-- 1.1.用户id
+local userId = ARGV[1];
+-- 1.2.订单消息队列分区数
+local partitions = tonumber(ARGV[2]);
+-- 1.3.当前时间（秒）
+local now = tonumber(ARGV[3]);
+-- 1.4.支付截止时间（毫秒）
+local payDeadline = ARGV[4];
+-- 1.5.订单积压水位线，0表示不限制
+local backlogWatermark = tonumber(ARGV[5]) or 0;
+-- 1.6.当前时间（毫秒），用于限流
+local nowMillis = tonumber(ARGV[6]);
+-- 1.7.编码后的组合订单消息
+local payload = ARGV[7];
+-- 1.8.优惠券数量，之后每3个一组：优惠券id 订单id 是否已经从相邻分片借过库存（1/0）
+local n = tonumber(ARGV[8]);
+
+local backlogKey = "seckill:backlog";
+local timeoutKey = "seckill:order:timeout";
+
+-- GCRA限流，与seckill.lua相同，但只读：返回新的理论到达时间（不限流时返回0），被限流时返回nil，
+-- 全部校验通过后才在提交阶段写入，失败的组合不消耗任何一张券的限流额度
+local function rateCheck(key, limit, period)
+    if (limit <= 0) then
+        return 0;
+    end
+    local interval = period / limit;
+    local tat = math.max(tonumber(redis.call('get', key)) or nowMillis, nowMillis);
+    local newTat = tat + interval;
+    if (newTat - nowMillis > period) then
+        return nil;
+    end
+    return newTat;
+end
+
+local function rateCommit(key, newTat)
+    if (newTat > 0) then
+        redis.call('set', key, newTat, 'px', math.ceil(newTat - nowMillis));
+    end
+end
+
+-- 2.判断订单积压
+if (backlogWatermark > 0 and (tonumber(redis.call('get', backlogKey)) or 0) >= backlogWatermark) then
+    return {7, 0};
+end
+
+-- 3.逐张校验，记录要扣减的库存分片和下单记录，先不修改
+local plans = {};
+for i = 1, n do
+    local voucherId = ARGV[6 + 3 * i];
+    local orderId = ARGV[7 + 3 * i];
+    local borrowed = ARGV[8 + 3 * i] == '1';
+    local voucherKey = "seckill:voucher:" .. voucherId;
+    local meta = redis.call('hmget', voucherKey, 'shards', 'begin', 'end', 'limit', 'rate', 'userRate', 'room');
+    if (not meta[1]) then
+        return {10, i};
+    end
+    -- 3.1.判断秒杀时间
+    if (meta[2] and now < tonumber(meta[2])) then
+        return {3, i};
+    end
+    if (meta[3] and now > tonumber(meta[3])) then
+        return {4, i};
+    end
+    -- 3.2.开启排队时，判断用户是否已经轮到
+    if (meta[7] == '1') then
+        local position = tonumber(redis.call('hget', "seckill:room:user:" .. voucherId, userId));
+        if (not position or position > (tonumber(redis.call('get', "seckill:room:admitted:" .. voucherId)) or 0)) then
+            return {9, i};
+        end
+    end
+    -- 3.3.全局限流（只检查，不写入）
+    local rateKey = "seckill:rate:" .. voucherId;
+    local userRateKey = rateKey .. ":" .. userId;
+    local rateTat = rateCheck(rateKey, tonumber(meta[5]) or 0, 1000);
+    local userRateTat = rateCheck(userRateKey, tonumber(meta[6]) or 0, 60000);
+    if (not rateTat or not userRateTat) then
+        return {8, i};
+    end
+    -- 3.4.库存：只检查用户所在分片，库存不足且还没有借过时返回11，由调用方从相邻分片借库存后重试
+    local shards = tonumber(meta[1]) or 1;
+    local limit = tonumber(meta[4]) or 1;
+    local stockKey = KEYS[3 * i - 2];
+    local orderKey = KEYS[3 * i - 1];
+    local quotaKey = KEYS[3 * i];
+    if ((tonumber(redis.call('get', stockKey)) or 0) <= 0) then
+        if (shards > 1 and not borrowed) then
+            return {11, i};
+        end
+        return {1, i};
+    end
+    -- 3.5.判断重复下单/超出限购
+    if (limit <= 1) then
+        if (redis.call('sismember', orderKey, userId) == 1) then
+            return {2, i};
+        end
+    elseif ((tonumber(redis.call('hget', quotaKey, userId)) or 0) + 1 > limit) then
+        return {6, i};
+    end
+    plans[i] = {stockKey, limit, orderKey, quotaKey, orderId, rateKey, rateTat, userRateKey, userRateTat};
+end
+
+-- 4.全部通过，写入限流状态、扣减库存、记录下单用户、加入超时未支付延迟队列
+for i = 1, n do
+    local plan = plans[i];
+    rateCommit(plan[6], plan[7]);
+    rateCommit(plan[8], plan[9]);
+    redis.call('incrby', plan[1], -1);
+    if (plan[2] <= 1) then
+        redis.call('sadd', plan[3], userId);
+    else
+        redis.call('hincrby', plan[4], userId, 1);
+    end
+    redis.call('zadd', timeoutKey, payDeadline, plan[5]);
+end
+-- 5.整个组合一条消息，进入第一张优惠券所在的分区 XADD stream.orders.p * b payload
+-- （组合需要在一个事务中落库，不能拆到各张券的分区；因此组合订单与其他券的单券订单之间不保证顺序）
+redis.call('xadd', "stream.orders." .. (tonumber(ARGV[9]) % partitions), '*', 'b', payload);
+redis.call('incr', backlogKey);
+return {0, 0};
@@ -0,0 +1,36 @@
+-- 超时未支付订单退回库存（调用前订单已经在数据库中取消）
+-- ARGV：每4个一组 orderId voucherId userId quantity
+local timeoutKey = "seckill:order:timeout";
+for i = 1, #ARGV, 4 do
+    local orderId = ARGV[i];
+    local voucherId = ARGV[i + 1];
+    local userId = ARGV[i + 2];
+    local quantity = tonumber(ARGV[i + 3]);
+    -- 订单已经在数据库中加锁取消（每个订单只会被一个实例取消），这里无条件退回
+    redis.call('zrem', timeoutKey, orderId);
+    local meta = redis.call('hmget', "seckill:voucher:" .. voucherId, 'shards', 'limit');
+    local shards = tonumber(meta[1]);
+    local limit = tonumber(meta[2]) or 1;
+    -- 元数据已清理（秒杀结束后下架）时不知道库存所在的分片，不再退回，避免写入多余的key
+    if (shards ~= nil) then
+        -- 退回到用户所在的分片，key格式与SeckillKeys.shardKey相同
+        local tag = "{" .. voucherId .. "}";
+        if (shards > 1) then
+            tag = "{" .. voucherId .. ":" .. (tonumber(userId) % shards) .. "}";
+        end
+        local stockKey = "seckill:stock:" .. tag;
+        local orderKey = "seckill:order:" .. tag;
+        local quotaKey = "seckill:quota:" .. tag;
+        -- 1.退回库存，库存key已不存在时不再创建
+        if (redis.call('exists', stockKey) == 1) then
+            redis.call('incrby', stockKey, quantity);
+        end
+        -- 2.移除用户的购买记录
+        if (limit <= 1) then
+            redis.call('srem', orderKey, userId);
+        elseif (redis.call('hincrby', quotaKey, userId, -quantity) <= 0) then
+            redis.call('hdel', quotaKey, userId);
+        end
+    end
+end
+return 0;